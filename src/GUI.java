@@ -1,3 +1,10 @@
+import core.CommitGraph;
+import core.CommitGraphManager;
+import core.EventReporter;
+import core.IndexFile;
+import core.IndexMap;
+import core.ObjectManager;
+import core.TreeManager;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -62,7 +69,11 @@ public class GUI extends Application {
             new Command("smk revert <commit>", "Revert working tree to a commit"),
             new Command("smk clone <path>", "Clone another local repo"),
             new Command("smk show <commit>", "Show metadata and message of a commit"),
-            new Command("smk clean", "Remove untracked files")
+            new Command("smk clean", "Remove untracked files"),
+            new Command("smk config <key> <value>", "Set a repository setting (e.g. core.compression 6)"),
+            new Command("smk upgrade", "Convert an older repository to the current format"),
+            new Command("smk repack", "Move loose objects into a packfile"),
+            new Command("smk gc", "Repack live objects and prune unreachable ones")
     );
 
     private ListView<String> fileExplorer;
@@ -496,21 +507,8 @@ public class GUI extends Application {
     }
 
     private String readParent(String hash, Path smkDir) {
-        if (hash == null || hash.isEmpty()) return "";
-        try {
-            Path obj = smkDir.resolve("objects").resolve(hash);
-            if (!Files.exists(obj)) return "";
-            String content = Files.readString(obj);
-            int blank = content.indexOf("\n\n");
-            String header = blank == -1 ? content : content.substring(0, blank);
-            try (BufferedReader r = new BufferedReader(new StringReader(header))) {
-                String line;
-                while ((line = r.readLine()) != null) {
-                    if (line.startsWith("parent ")) return line.substring("parent ".length());
-                }
-            }
-        } catch (IOException ignored) {}
-        return "";
+        CommitGraph.Commit c = CommitGraphManager.readCommit(smkDir.resolve("objects"), hash);
+        return c == null || c.parents().isEmpty() ? "" : c.parents().get(0);
     }
 
     private void updateVisuals() {
@@ -531,26 +529,21 @@ public class GUI extends Application {
             Path objectsDir = smkDir.resolve("objects");
             Map<String, List<String>> parents = new HashMap<>();
             if (Files.exists(objectsDir)) {
-                try (var stream = Files.list(objectsDir)) {
-                    stream.forEach(p -> {
-                        try {
-                            String content = Files.readString(p);
-                            if (!content.startsWith("commit\n")) return;
-                            String hash = p.getFileName().toString();
-                            List<String> ps = new ArrayList<>();
-                            try (BufferedReader r = new BufferedReader(new StringReader(content))) {
-                                String line;
-                                boolean inMsg = false;
-                                while ((line = r.readLine()) != null) {
-                                    if (line.isEmpty()) { inMsg = true; continue; }
-                                    if (!inMsg && line.startsWith("parent ")) {
-                                        ps.add(line.substring("parent ".length()));
-                                    }
-                                }
-                            }
-                            parents.put(hash, ps);
-                        } catch (IOException ignored) {}
-                    });
+                // Commits in the commit-graph need no object reads at all
+                CommitGraph graph = CommitGraphManager.graph(objectsDir);
+                if (graph != null) {
+                    for (int i = 0; i < graph.size(); i++) {
+                        CommitGraph.Commit c = graph.commit(i);
+                        parents.put(c.id(), c.parents());
+                    }
+                }
+                for (String hash : ObjectManager.listAllObjectIds(objectsDir)) {
+                    if (parents.containsKey(hash)) continue;
+                    // Peek at the header first so blobs are never read (or inflated)
+                    ObjectManager.ObjectHeader header = ObjectManager.readObjectHeader(objectsDir, hash);
+                    if (header == null || !"commit".equals(header.type())) continue;
+                    String content = ObjectManager.readObject(objectsDir, hash).content();
+                    parents.put(hash, CommitGraphManager.parseCommit(hash, content).parents());
                 }
             }
 
@@ -809,14 +802,12 @@ public class GUI extends Application {
 
         // Run command in a separate thread to avoid blocking UI
         new Thread(() -> {
-            PrintStream originalOut = System.out;
-            PrintStream originalErr = System.err;
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            PrintStream ps = new PrintStream(baos, true);
-
-            System.setOut(ps);
-            System.setErr(ps);
+            // Lines read from the command are passed to the terminal in batches. The child
+            // process buffers its own output (CliReporter), so most of it arrives as it ends.
+            EventReporter reporter = new EventReporter(batch -> {
+                String text = eventText(batch);
+                Platform.runLater(() -> appendColoredOutput(text));
+            });
 
             try {
                 // Parse and execute command
@@ -872,20 +863,16 @@ public class GUI extends Application {
                     // Read output
                     BufferedReader reader = new BufferedReader(
                         new InputStreamReader(process.getInputStream(), java.nio.charset.StandardCharsets.UTF_8));
-                    StringBuilder output = new StringBuilder();
                     String line;
                     while ((line = reader.readLine()) != null) {
-                        output.append(line).append("\n");
+                        reporter.println(line);
                     }
 
                     process.waitFor();
+                    reporter.flush();
 
                     // Update UI on JavaFX thread
-                        String finalOutput = output.toString();
                         Platform.runLater(() -> {
-                            if (!finalOutput.isEmpty()) {
-                                appendColoredOutput(finalOutput);
-                            }
                             updateRepoState();
                             updateFileExplorer();
                             updateSMKTreeView();
@@ -910,12 +897,21 @@ public class GUI extends Application {
                     scrollTerminalToBottom();
                 });
             } finally {
-                System.setOut(originalOut);
-                System.setErr(originalErr);
+                reporter.flush();
             }
         }).start();
     }
 
+    // The text of a batch of output events, one line per line event.
+    private static String eventText(List<EventReporter.Event> batch) {
+        StringBuilder text = new StringBuilder();
+        for (EventReporter.Event event : batch) {
+            text.append(event.text());
+            if (event.line()) text.append("\n");
+        }
+        return text.toString();
+    }
+
     private String[] parseCommand(String raw) {
         List<String> parts = new ArrayList<>();
         boolean inQuotes = false;
@@ -991,14 +987,10 @@ public class GUI extends Application {
             int commitCount = 0;
             if (Files.exists(objectsDir)) {
                 try {
-                    commitCount = (int) Files.list(objectsDir)
-                        .filter(p -> {
-                            try {
-                                String content = Files.readString(p);
-                                return content.startsWith("commit\n");
-                            } catch (IOException e) {
-                                return false;
-                            }
+                    commitCount = (int) ObjectManager.listAllObjectIds(objectsDir).stream()
+                        .filter(id -> {
+                            ObjectManager.ObjectHeader header = ObjectManager.readObjectHeader(objectsDir, id);
+                            return header != null && "commit".equals(header.type());
                         })
                         .count();
                 } catch (IOException e) {
@@ -1006,14 +998,31 @@ public class GUI extends Application {
                 }
             }
 
-            // Read index
+            // Read index: it holds every tracked file, so count the entries that differ from HEAD as status does
             Path indexFile = smkDir.resolve("index");
             int stagedCount = 0;
             if (Files.exists(indexFile)) {
                 try {
-                    String indexContent = Files.readString(indexFile);
-                    if (!indexContent.trim().isEmpty()) {
-                        stagedCount = indexContent.split("\n").length;
+                    // A branch with no commits yet leaves "ref: ..." in headContent
+                    CommitGraph.Commit head = headContent.startsWith("ref: ") ? null
+                            : CommitGraphManager.readCommit(objectsDir, headContent);
+                    IndexMap headTree = head == null ? new IndexMap() : TreeManager.readTree(objectsDir, head.tree());
+                    Map<String, String> staged = new HashMap<>();
+                    IndexFile index = IndexFile.open(indexFile);
+                    if (index != null) {
+                        index.forEach((path, hash, stat) -> staged.put(path, hash));
+                    } else {
+                        // Index still in the old text format
+                        for (String line : Files.readAllLines(indexFile)) {
+                            String[] fields = line.split("\t");
+                            if (fields.length >= 2) staged.put(fields[0], fields[1]);
+                        }
+                    }
+                    for (Map.Entry<String, String> kv : staged.entrySet()) {
+                        if (!kv.getValue().equals(headTree.get(kv.getKey()))) stagedCount++;
+                    }
+                    for (String path : headTree.keySet()) {
+                        if (!staged.containsKey(path)) stagedCount++;
                     }
                 } catch (IOException e) {
                     // Ignore
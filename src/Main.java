@@ -1,8 +1,6 @@
 import core.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,6 +24,9 @@ public class Main {
     private static final String INDEX_FILE = SMK_DIR + "/index";
     private static final String CONFIG_FILE = SMK_DIR + "/config";
 
+    // Process exit status, for commands that answer with it (merge-base --is-ancestor)
+    private static int exitStatus = 0;
+
     /**
      * Sets up a new SMK repository by creating the folders and files
      * needed to track commits, branches, and the staging area. It sets
@@ -35,7 +36,7 @@ public class Main {
 
     public static void initRepo() {
         if (Files.exists(Paths.get(SMK_DIR))) {
-            System.out.println("Repository already initialized.");
+            Output.println("Repository already initialized.");
             return;
         }
 
@@ -46,42 +47,75 @@ public class Main {
             Utils.writeFile(Paths.get(HEAD_FILE), "ref: refs/heads/master\n");
             Utils.writeFile(Paths.get(REFS_HEADS_DIR + "/master"), "\n");
             Utils.writeFile(Paths.get(INDEX_FILE), "");
-            System.out.println("Initialized empty smk repository");
+            RepoUpgrade.markCurrent();
+            Output.println("Initialized empty smk repository");
         } catch (IOException e) {
-            System.err.println("Error initializing repository: " + e.getMessage());
+            Output.error("Error initializing repository: " + e.getMessage());
         }
     }
 
     public static void cmdAddAll() {
-        List<String> files = Utils.listFilesRecursive(".");
-        IndexMap idx = IndexManager.readIndex();
+        IndexFile index = IndexManager.openIndex();
         IndexMap headTree = CommitManager.readHeadTree();
 
-        for (String f : files) {
-            // Skip .smk directory - must never be tracked
-            if (f.startsWith(SMK_DIR + "/") || f.startsWith(SMK_DIR + "\\")) continue;
-            if (f.contains("/" + SMK_DIR + "/") || f.contains("\\" + SMK_DIR + "\\")) continue;
-            if (f.equals(SMK_DIR)) continue;
+        // The walk leaves out .smk and ignored paths
+        IgnoreRules ignore = IgnoreRules.load(Paths.get("."));
+        List<String> candidates = new ArrayList<>(Utils.listFilesRecursive(".", ignore));
+        if (!ignore.isEmpty()) {
+            // A tracked file stays tracked when .smkignore matches it: keep picking up its changes
+            Set<String> walked = new HashSet<>(candidates);
+            index.forEachEntry((i, path) -> {
+                if (!walked.contains(path) && ignore.isIgnored(path, false) && Files.isRegularFile(Paths.get(path))) {
+                    candidates.add(path);
+                }
+            });
+        }
 
+        List<String> files = new ArrayList<>();
+        for (String f : candidates) {
             // Skip hidden files (starting with .) except in subdirectories
             Path filePath = Paths.get(f);
             if (filePath.getFileName() != null && filePath.getFileName().toString().startsWith(".")) {
                 continue;
             }
+            files.add(f);
+        }
 
-            try {
-                String h = ObjectManager.hashBlobFromFile(f);
-                String headHash = headTree.get(f);
+        // Files are hashed in parallel; results come back in walk order. Only the entries that
+        // change are kept: when there are none the index is not decoded or rewritten.
+        List<ParallelHasher.Result> changed = new ArrayList<>();
+        ParallelHasher.hashFiles(files, index, r -> {
+            if (r.error() != null) {
+                Output.error("Error processing file " + r.path() + ": " + r.error().getMessage());
+                return;
+            }
+            String headHash = headTree.get(r.path());
 
-                // Only stage if file is new or changed from HEAD
-                if (headHash == null || !headHash.equals(h)) {
-                    idx.put(f, h);
-                    System.out.println("add " + f);
-                }
-            } catch (IOException e) {
-                System.err.println("Error processing file " + f + ": " + e.getMessage());
+            // Only report if file is new or changed from HEAD
+            if (headHash == null || !headHash.equals(r.hash())) {
+                Output.println("add " + r.path());
             }
+            // New stat data of an unchanged file counts too, so it is not hashed again on the next run
+            int i = index.find(r.path());
+            if (i < 0 || !r.hash().equals(index.cleanHash(i, r.stat()))) changed.add(r);
+        });
+
+        // Tracked files that are gone from the working tree are staged as deletions
+        Set<String> walked = new HashSet<>(candidates);
+        List<String> removed = new ArrayList<>();
+        index.forEachEntry((i, path) -> {
+            if (walked.contains(path) || Files.exists(Paths.get(path))) return;
+            removed.add(path);
+            if (headTree.containsKey(path)) Output.println("remove " + path);
+        });
+        if (changed.isEmpty() && removed.isEmpty()) return;
+
+        IndexMap idx = IndexManager.readIndex();
+        for (ParallelHasher.Result r : changed) {
+            idx.put(r.path(), r.hash());
+            idx.putStat(r.path(), r.stat());
         }
+        for (String path : removed) idx.remove(path);
         IndexManager.writeIndex(idx);
     }
 
@@ -90,39 +124,44 @@ public class Main {
         if (file.startsWith(SMK_DIR + "/") || file.startsWith(SMK_DIR + "\\") ||
                 file.contains("/" + SMK_DIR + "/") || file.contains("\\" + SMK_DIR + "\\") ||
                 file.equals(SMK_DIR)) {
-            System.out.println("fatal: cannot add .smk directory");
+            Output.println("fatal: cannot add .smk directory");
             return;
         }
 
         Path filePath = Paths.get(file);
         if (!Files.exists(filePath)) {
-            System.out.println("fatal: pathspec '" + file + "' did not match any files");
+            Output.println("fatal: pathspec '" + file + "' did not match any files");
             return;
         }
 
         try {
+            FileStat st = FileStat.of(file);
             String h = ObjectManager.hashBlobFromFile(file);
-            IndexMap idx = IndexManager.readIndex();
             IndexMap headTree = CommitManager.readHeadTree();
             String headHash = headTree.get(file);
 
             // Only stage if file is new or changed from HEAD
             if (headHash == null || !headHash.equals(h)) {
-                idx.put(file, h);
-                IndexManager.writeIndex(idx);
-                System.out.println("add " + file);
+                // Already staged with this content: no need to load and rewrite the whole index
+                if (!h.equals(IndexManager.lookup(file))) {
+                    IndexMap idx = IndexManager.readIndex();
+                    idx.put(file, h);
+                    idx.putStat(file, st);
+                    IndexManager.writeIndex(idx);
+                }
+                Output.println("add " + file);
             } else {
-                System.out.println("File '" + file + "' unchanged from HEAD, not staged");
+                Output.println("File '" + file + "' unchanged from HEAD, not staged");
             }
         } catch (IOException e) {
-            System.err.println("Error processing file " + file + ": " + e.getMessage());
+            Output.error("Error processing file " + file + ": " + e.getMessage());
         }
     }
 
     public static void cmdLog(boolean oneline) {
         String cur = CommitManager.readRefHead();
         if (cur.isEmpty()) {
-            System.out.println("Fatal Error! your current branch does not have any commits yet");
+            Output.println("Fatal Error! your current branch does not have any commits yet");
             return;
         }
 
@@ -132,100 +171,34 @@ public class Main {
 
             String meta = obj.content();
             int blank = meta.indexOf("\n\n");
-            String header = (blank == -1) ? meta : meta.substring(0, blank);
             String msg = (blank == -1) ? "" : meta.substring(blank + 2).trim();
 
             if (oneline) {
                 String shortMsg = msg.contains("\n") ? msg.substring(0, msg.indexOf('\n')) : msg;
                 String shortHash = cur.length() > 7 ? cur.substring(0, 7) : cur;
-                System.out.println(shortHash + " " + (shortMsg.isEmpty() ? "(no message)" : shortMsg));
+                Output.println(shortHash + " " + (shortMsg.isEmpty() ? "(no message)" : shortMsg));
             } else {
-                System.out.println("commit " + cur + "\n");
-                System.out.println("    " + msg + "\n");
+                Output.println("commit " + cur + "\n");
+                Output.println("    " + msg + "\n");
             }
 
-            String parent = "";
-            try (BufferedReader ss = new BufferedReader(new StringReader(header))) {
-                String line;
-                while ((line = ss.readLine()) != null) {
-                    if (line.startsWith("parent ")) {
-                        parent = line.substring("parent ".length());
-                        break;
-                    }
-                }
-            } catch (IOException e) {
-                // Ignore IO error during parsing
-            }
-
-            if (parent.isEmpty()) break;
-            cur = parent;
+            // The message has to come from the object, but the parent is in the commit-graph
+            CommitGraph.Commit c = CommitGraphManager.readCommit(cur);
+            if (c == null || c.parents().isEmpty()) break;
+            cur = c.parents().get(0);
         }
     }
 
     public static void cmdStatus() {
-        IndexMap headTree = CommitManager.readHeadTree();
-        IndexMap idx = IndexManager.readIndex();
-
-        List<String> stagedNew = new ArrayList<>();
-        List<String> stagedModified = new ArrayList<>();
-        List<String> stagedDeleted = new ArrayList<>();
-
-        for (Map.Entry<String, String> kv : idx.entrySet()) {
-            final String path = kv.getKey();
-            final String blob = kv.getValue();
-            String headBlob = headTree.get(path);
-
-            if (headBlob == null) {
-                stagedNew.add(path);
-            } else if (!headBlob.equals(blob)) {
-                stagedModified.add(path);
-            }
-        }
-
-        for (Map.Entry<String, String> kv : headTree.entrySet()) {
-            final String path = kv.getKey();
-            if (!idx.containsKey(path)) {
-                stagedDeleted.add(path);
-            }
-        }
-
-        List<String> notStagedModified = new ArrayList<>();
-        List<String> notStagedDeleted = new ArrayList<>();
-
-        for (Map.Entry<String, String> kv : idx.entrySet()) {
-            final String path = kv.getKey();
-            final String stagedBlob = kv.getValue();
-
-            if (!Files.exists(Paths.get(path))) {
-                notStagedDeleted.add(path);
-                continue;
-            }
-
-            try {
-                String workBlob = ObjectManager.hashBlobFromFile(path);
-                if (!workBlob.equals(stagedBlob)) {
-                    notStagedModified.add(path);
-                }
-            } catch (IOException e) {
-                // Ignore IO error during hashing, treat as unchanged or skip
-            }
-        }
-
-        List<String> untracked = new ArrayList<>();
-        List<String> files = Utils.listFilesRecursive(".");
-        Set<String> trackedInIndexAndHead = new HashSet<>();
-        trackedInIndexAndHead.addAll(idx.keySet());
-        trackedInIndexAndHead.addAll(headTree.keySet());
-
-        for (String f : files) {
-            String normalizedF = f.replace("\\", "/");
-            if (normalizedF.startsWith(SMK_DIR + "/") || normalizedF.equals(SMK_DIR)) continue;
-            if (!trackedInIndexAndHead.contains(f)) {
-                untracked.add(f);
-            }
-        }
-
-        System.out.print("On branch ");
+        StatusManager.Status status = StatusManager.status();
+        List<String> stagedNew = status.stagedNew();
+        List<String> stagedModified = status.stagedModified();
+        List<String> stagedDeleted = status.stagedDeleted();
+        List<String> notStagedModified = status.notStagedModified();
+        List<String> notStagedDeleted = status.notStagedDeleted();
+        List<String> untracked = status.untracked();
+
+        Output.print("On branch ");
         String head;
         try {
             head = Utils.readFileStr(HEAD_FILE).trim();
@@ -236,96 +209,121 @@ public class Main {
         final String branchPrefix = "ref: refs/heads/";
         if (head.startsWith(branchPrefix)) {
             String name = head.substring(branchPrefix.length());
-            System.out.println(name);
+            Output.println(name);
         } else {
-            System.out.println("(detached HEAD)");
+            Output.println("(detached HEAD)");
         }
 
         if (!stagedNew.isEmpty() || !stagedModified.isEmpty() || !stagedDeleted.isEmpty()) {
-            System.out.println("\nChanges to be committed:");
-            for (String p : stagedNew) System.out.println("  new file:   " + p);
-            for (String p : stagedModified) System.out.println("  modified:   " + p);
-            for (String p : stagedDeleted) System.out.println("  deleted:    " + p);
+            Output.println("\nChanges to be committed:");
+            for (String p : stagedNew) Output.println("  new file:   " + p);
+            for (String p : stagedModified) Output.println("  modified:   " + p);
+            for (String p : stagedDeleted) Output.println("  deleted:    " + p);
         }
 
         if (!notStagedModified.isEmpty() || !notStagedDeleted.isEmpty()) {
-            System.out.println("\nChanges not staged for commit:");
-            for (String p : notStagedModified) System.out.println("  modified:   " + p);
-            for (String p : notStagedDeleted) System.out.println("  deleted:    " + p);
+            Output.println("\nChanges not staged for commit:");
+            for (String p : notStagedModified) Output.println("  modified:   " + p);
+            for (String p : notStagedDeleted) Output.println("  deleted:    " + p);
         }
 
         if (!untracked.isEmpty()) {
-            System.out.println("\nUntracked files:");
-            for (String p : untracked) System.out.println("  " + p);
+            Output.println("\nUntracked files:");
+            for (String p : untracked) Output.println("  " + p);
         }
 
         if (stagedNew.isEmpty() && stagedModified.isEmpty() && stagedDeleted.isEmpty() &&
                 notStagedModified.isEmpty() && notStagedDeleted.isEmpty() && untracked.isEmpty()) {
-            System.out.println("\nnothing to commit, working tree clean");
+            Output.println("\nnothing to commit, working tree clean");
         }
     }
 
 
+    public static void cmdDiff(final List<String> args) {
+        LineDiff.Options options = LineDiff.Options.fromConfig();
+        List<String> refs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-U") || arg.startsWith("--unified=")) {
+                String n = arg.startsWith("-U") ? arg.substring(2) : arg.substring("--unified=".length());
+                try {
+                    options = options.withContext(Integer.parseInt(n));
+                } catch (NumberFormatException e) {
+                    Output.println("Invalid context line count: " + n);
+                    return;
+                }
+            } else if (arg.startsWith("--diff-algorithm=") || arg.equals("--histogram") || arg.equals("--patience")
+                    || arg.equals("--myers")) {
+                String name = arg.startsWith("--diff-algorithm=") ? arg.substring("--diff-algorithm=".length()) : arg.substring(2);
+                LineDiff.Algorithm algorithm = LineDiff.parseAlgorithm(name);
+                if (algorithm == null) {
+                    Output.println("Unknown diff algorithm: " + name);
+                    return;
+                }
+                options = options.withAlgorithm(algorithm);
+            } else {
+                refs.add(arg);
+            }
+        }
+
+        if (refs.isEmpty()) {
+            // smk diff - Working Directory vs Staging Area (unstaged changes)
+            DiffManager.showDiff(options);
+        } else if (refs.size() == 1 && refs.get(0).equals("HEAD")) {
+            // smk diff HEAD - Working Directory vs Last Commit (all changes)
+            DiffManager.showDiffHead(options);
+        } else if (refs.size() == 2) {
+            // smk diff <commitA> <commitB> - Commit vs Commit
+            String commitA = refs.get(0);
+            String commitB = refs.get(1);
+            // Handle HEAD as special case
+            if (commitA.equals("HEAD")) {
+                commitA = CommitManager.readRefHead();
+            }
+            if (commitB.equals("HEAD")) {
+                commitB = CommitManager.readRefHead();
+            }
+            DiffManager.showDiffCommits(commitA, commitB, options);
+        } else {
+            Output.println("Usage: smk diff [-U<n>] [--diff-algorithm=myers|histogram] [HEAD|<commitA> <commitB>]");
+            Output.println("  smk diff              - Show unstaged changes (working dir vs staging)");
+            Output.println("  smk diff HEAD        - Show all changes (working dir vs last commit)");
+            Output.println("  smk diff <A> <B>     - Show differences between two commits");
+            Output.println("  -U<n>                - Lines of context around each change (default: diff.context or 3)");
+            Output.println("  --histogram          - Use histogram diff instead of Myers (default: diff.algorithm)");
+        }
+    }
+
     public static void cmdRevert(final String commitHash) {
         if (commitHash.isEmpty()) {
-            System.out.println("Usage: smk revert <commit>");
+            Output.println("Usage: smk revert <commit>");
             return;
         }
         IndexMap newTree = CommitManager.readTreeFromCommit(commitHash);
         if (newTree.isEmpty()) {
-            System.out.println("Unknown commit: " + commitHash);
+            Output.println("Unknown commit: " + commitHash);
             return;
         }
 
         IndexMap oldTree = CommitManager.readHeadTree();
 
-        // Delete files that exist in old tree but not in new tree
-        for (final String path : oldTree.keySet()) {
-            if (!newTree.containsKey(path)) {
-                try {
-                    Path filePath = Paths.get(path);
-                    if (Files.exists(filePath)) {
-                        Files.deleteIfExists(filePath);
-                    }
-                } catch (IOException e) {
-                    System.err.println("Error deleting file " + path + ": " + e.getMessage());
-                }
-            }
-        }
-
-        // Restore files from new tree (including deleted files)
-        for (Map.Entry<String, String> kv : newTree.entrySet()) {
-            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(kv.getValue());
-            if (!"blob".equals(obj.type())) continue;
-
-            Path p = Paths.get(kv.getKey());
-            try {
-                if (p.getParent() != null) {
-                    Files.createDirectories(p.getParent());
-                }
-                Utils.writeFile(p, obj.content());
-            } catch (IOException e) {
-                System.err.println("Error writing file during revert: " + e.getMessage());
-            }
-        }
-        IndexManager.writeIndex(newTree);
+        CheckoutManager.checkout(oldTree, newTree);
 
         CommitManager.createCommit("Revert to " + commitHash, false);
     }
 
     public static void cmdClone(final String source) {
         if (source.isEmpty()) {
-            System.out.println("Usage: smk clone <path>");
+            Output.println("Usage: smk clone <path>");
             return;
         }
         Path src = Paths.get(source);
         if (!Files.exists(src) || !Files.isDirectory(src)) {
-            System.out.println("fatal: clone source not found: " + source);
+            Output.println("fatal: clone source not found: " + source);
             return;
         }
         Path dest = src.getFileName();
         if (Files.exists(dest)) {
-            System.out.println("fatal: destination already exists: " + dest.toString());
+            Output.println("fatal: destination already exists: " + dest.toString());
             return;
         }
 
@@ -342,13 +340,13 @@ public class Main {
                             Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
                         }
                     } catch (IOException e) {
-                        System.err.println("Error cloning file " + from + ": " + e.getMessage());
+                        Output.error("Error cloning file " + from + ": " + e.getMessage());
                     }
                 });
             }
-            System.out.println("Cloned repository to " + dest.toString());
+            Output.println("Cloned repository to " + dest.toString());
         } catch (IOException e) {
-            System.err.println("Error cloning repository: " + e.getMessage());
+            Output.error("Error cloning repository: " + e.getMessage());
         }
     }
 
@@ -358,13 +356,13 @@ public class Main {
             hash = CommitManager.readRefHead();
         }
         if (hash.isEmpty()) {
-            System.out.println("No commits yet.");
+            Output.println("No commits yet.");
             return;
         }
 
         ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(hash);
         if (!"commit".equals(obj.type())) {
-            System.out.println("Object is not a commit: " + hash);
+            Output.println("Object is not a commit: " + hash);
             return;
         }
         String meta = obj.content();
@@ -372,10 +370,10 @@ public class Main {
         String header = (blank == -1) ? meta : meta.substring(0, blank);
         String msg = (blank == -1) ? "" : meta.substring(blank + 2);
 
-        System.out.println("commit " + hash);
-        System.out.println(header);
-        System.out.println();
-        if (!msg.isEmpty()) System.out.println(msg);
+        Output.println("commit " + hash);
+        Output.println(header);
+        Output.println();
+        if (!msg.isEmpty()) Output.println(msg);
     }
 
     public static void cmdClean() {
@@ -385,11 +383,11 @@ public class Main {
         List<String> files = Utils.listFilesRecursive(".");
         boolean any = false;
 
+        // The walk never enters .smk, and ignored files are kept like tracked ones
+        Path ignoreFile = Paths.get(IgnoreRules.FILE);
         for (String path : files) {
-            // Never touch .smk directory
-            if (path.startsWith(SMK_DIR + "/") || path.startsWith(SMK_DIR + "\\")) continue;
-            if (path.contains("/" + SMK_DIR + "/") || path.contains("\\" + SMK_DIR + "\\")) continue;
-            if (path.equals(SMK_DIR)) continue;
+            // add . skips hidden files, so .smkignore is usually untracked: it must survive a clean
+            if (Paths.get(path).normalize().equals(ignoreFile)) continue;
 
             // Only remove untracked files (not in index and not in HEAD)
             // Must not delete committed files
@@ -397,26 +395,123 @@ public class Main {
                 try {
                     if (Files.deleteIfExists(Paths.get(path))) {
                         any = true;
-                        System.out.println("removed " + path);
+                        Output.println("removed " + path);
                     }
                 } catch (IOException e) {
-                    System.err.println("Error removing " + path + ": " + e.getMessage());
+                    Output.error("Error removing " + path + ": " + e.getMessage());
                 }
             }
         }
         if (!any) {
-            System.out.println("Nothing to clean.");
+            Output.println("Nothing to clean.");
+        }
+    }
+
+    public static void cmdConfig(final List<String> args) {
+        if (args.isEmpty()) {
+            for (Map.Entry<String, String> kv : ConfigManager.list().entrySet()) {
+                Output.println(kv.getKey() + " = " + kv.getValue());
+            }
+        } else if (args.size() == 1) {
+            String value = ConfigManager.get(args.get(0), null);
+            if (value != null) Output.println(value);
+        } else {
+            ConfigManager.set(args.get(0), args.get(1));
+        }
+    }
+
+    /**
+     * Prints the merge bases of two commits, or with --is-ancestor answers through the exit status only.
+     * Commits are given as HEAD, a branch name or a commit hash.
+     */
+    public static void cmdMergeBase(final List<String> args) {
+        boolean all = args.contains("--all");
+        boolean isAncestor = args.contains("--is-ancestor");
+        List<String> commits = new ArrayList<>();
+        for (String a : args) {
+            if (!a.startsWith("--")) commits.add(resolveCommit(a));
+        }
+        if (commits.size() != 2) {
+            Output.println("Usage: smk merge-base [--all] <commit> <commit>");
+            Output.println("       smk merge-base --is-ancestor <commit> <commit>");
+            exitStatus = 2;
+            return;
+        }
+
+        if (isAncestor) {
+            exitStatus = MergeBase.isAncestor(commits.get(0), commits.get(1)) ? 0 : 1;
+            return;
+        }
+        List<String> bases = MergeBase.mergeBases(commits.get(0), commits.get(1));
+        if (bases.isEmpty()) {
+            exitStatus = 1;
+            return;
+        }
+        for (String base : all ? bases : bases.subList(0, 1)) Output.println(base);
+    }
+
+    // HEAD, a branch name, or anything else taken as a commit hash
+    private static String resolveCommit(final String name) {
+        if (name.equals("HEAD")) return CommitManager.readRefHead();
+        Path ref = Paths.get(REFS_HEADS_DIR, name);
+        if (Files.isRegularFile(ref)) {
+            try {
+                return Utils.readFileStr(ref.toString()).trim();
+            } catch (IOException e) {
+                return name;
+            }
         }
+        return name;
     }
 
     public static void main(String[] args) {
+        long mainNs = System.nanoTime();
+        long mainMs = System.currentTimeMillis();
+        StartupTrace trace = null;
+        if (args.length > 0 && args[0].equals("--startup-trace")) {
+            // Traced commands run here, so the trace measures this JVM
+            args = Arrays.copyOfRange(args, 1, args.length);
+            trace = StartupTrace.start(mainNs, mainMs);
+        } else {
+            // With a daemon serving this repository the command runs in its warm JVM
+            int forwarded = Daemon.forward(args);
+            if (forwarded >= 0) {
+                if (forwarded != 0) System.exit(forwarded);
+                return;
+            }
+        }
+
+        try {
+            run(args);
+        } finally {
+            if (trace != null) trace.report();
+            Output.flush();
+        }
+        if (exitStatus != 0) System.exit(exitStatus);
+    }
+
+    // Runs one command for the daemon and returns its exit status.
+    private static int runServed(final String[] args) {
+        exitStatus = 0;
+        run(args);
+        return exitStatus;
+    }
+
+    private static void run(String[] args) {
         List<String> argsList = Arrays.asList(args);
         if (argsList.isEmpty()) {
-            System.out.println("usage: smk <command> [args]");
+            Output.println("usage: smk <command> [args]");
             return;
         }
         String cmd = argsList.get(0);
 
+        // Objects written now would not match the IDs stored in an old repository
+        if (!cmd.equals("init") && !cmd.equals("upgrade") && !cmd.equals("clone") && RepoUpgrade.needsUpgrade()) {
+            Output.println("fatal: repository format " + RepoUpgrade.repositoryFormat()
+                    + " is out of date; run 'smk upgrade' first");
+            return;
+        }
+
         try {
             switch (cmd) {
                 case "init":
@@ -427,7 +522,7 @@ public class Main {
                         if (argsList.get(1).equals(".")) cmdAddAll();
                         else cmdAdd(argsList.get(1));
                     } else {
-                        System.out.println("Usage: smk add <file>|.");
+                        Output.println("Usage: smk add <file>|.");
                     }
                     break;
                 case "commit":
@@ -438,7 +533,7 @@ public class Main {
                         if (argsList.get(i).equals("-m") && i + 1 < argsList.size()) msg = argsList.get(i + 1);
                     }
                     if (msg.isEmpty()) {
-                        System.out.println("Usage: smk commit -m \"message\"");
+                        Output.println("Usage: smk commit -m \"message\"");
                     } else {
                         CommitManager.createCommit(msg, amend);
                     }
@@ -449,69 +544,49 @@ public class Main {
                 case "branch":
                     if (argsList.size() >= 2 && argsList.get(1).equals("-d")) {
                         if (argsList.size() < 3) {
-                            System.out.println("Usage: smk branch -d <name>");
+                            Output.println("Usage: smk branch -d <name>");
                         } else {
                             BranchManager.deleteBranch(argsList.get(2));
                         }
                     } else if (argsList.size() == 1) {
                         List<String> bs = BranchManager.listBranches();
-                        for (String b : bs) System.out.println(b);
+                        for (String b : bs) Output.println(b);
                     } else {
                         BranchManager.createBranch(argsList.get(1));
                     }
                     break;
                 case "checkout":
                     if (argsList.size() < 2) {
-                        System.out.println("Usage: smk checkout <branch>");
+                        Output.println("Usage: smk checkout <branch>");
                     } else {
                         String target = argsList.get(1);
                         if (Files.exists(Paths.get(REFS_HEADS_DIR, target))) {
                             BranchManager.checkoutBranch(target);
                         } else {
-                            System.out.println("Branch not found: " + target);
+                            Output.println("Branch not found: " + target);
                         }
                     }
                     break;
                 case "merge":
-                    if (argsList.size() < 2) System.out.println("Usage: smk merge <branch>");
+                    if (argsList.size() < 2) Output.println("Usage: smk merge <branch>");
                     else MergeManager.mergeBranch(argsList.get(1));
                     break;
+                case "merge-base":
+                    cmdMergeBase(argsList.subList(1, argsList.size()));
+                    break;
                 case "log":
                     boolean oneline = (argsList.size() >= 2 && (argsList.get(1).equals("--oneline") || argsList.get(1).equals("--one-line")));
                     cmdLog(oneline);
                     break;
                 case "diff":
-                    if (argsList.size() == 1) {
-                        // smk diff - Working Directory vs Staging Area (unstaged changes)
-                        DiffManager.showDiff();
-                    } else if (argsList.size() == 2 && argsList.get(1).equals("HEAD")) {
-                        // smk diff HEAD - Working Directory vs Last Commit (all changes)
-                        DiffManager.showDiffHead();
-                    } else if (argsList.size() == 3) {
-                        // smk diff <commitA> <commitB> - Commit vs Commit
-                        String commitA = argsList.get(1);
-                        String commitB = argsList.get(2);
-                        // Handle HEAD as special case
-                        if (commitA.equals("HEAD")) {
-                            commitA = CommitManager.readRefHead();
-                        }
-                        if (commitB.equals("HEAD")) {
-                            commitB = CommitManager.readRefHead();
-                        }
-                        DiffManager.showDiffCommits(commitA, commitB);
-                    } else {
-                        System.out.println("Usage: smk diff [HEAD|<commitA> <commitB>]");
-                        System.out.println("  smk diff              - Show unstaged changes (working dir vs staging)");
-                        System.out.println("  smk diff HEAD        - Show all changes (working dir vs last commit)");
-                        System.out.println("  smk diff <A> <B>     - Show differences between two commits");
-                    }
+                    cmdDiff(argsList.subList(1, argsList.size()));
                     break;
                 case "revert":
-                    if (argsList.size() < 2) System.out.println("Usage: smk revert <commit>");
+                    if (argsList.size() < 2) Output.println("Usage: smk revert <commit>");
                     else cmdRevert(argsList.get(1));
                     break;
                 case "clone":
-                    if (argsList.size() < 2) System.out.println("Usage: smk clone <path>");
+                    if (argsList.size() < 2) Output.println("Usage: smk clone <path>");
                     else cmdClone(argsList.get(1));
                     break;
                 case "show":
@@ -521,11 +596,34 @@ public class Main {
                 case "clean":
                     cmdClean();
                     break;
+                case "config":
+                    cmdConfig(argsList.subList(1, argsList.size()));
+                    break;
+                case "upgrade":
+                    RepoUpgrade.upgrade();
+                    break;
+                case "repack":
+                    PackManager.repack();
+                    break;
+                case "gc":
+                    GcManager.gc(argsList.contains("--prune=now"));
+                    break;
+                case "commit-graph":
+                    if (argsList.size() >= 2 && argsList.get(1).equals("write")) CommitGraphManager.write();
+                    else Output.println("Usage: smk commit-graph write");
+                    break;
+                case "daemon":
+                    String sub = argsList.size() >= 2 ? argsList.get(1) : "start";
+                    if (sub.equals("start")) Daemon.serve(Main::runServed);
+                    // A running daemon answers these itself
+                    else if (sub.equals("stop") || sub.equals("status")) Output.println("No daemon running");
+                    else Output.println("Usage: smk daemon [start|stop|status]");
+                    break;
                 default:
-                    System.out.println("Unknown command: " + cmd);
+                    Output.println("Unknown command: " + cmd);
             }
         } catch (final Exception e) {
-            System.err.println("Error! Please Try Again.: " + e.getMessage());
+            Output.error("Error! Please Try Again.: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
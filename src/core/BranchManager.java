@@ -35,37 +35,6 @@ public class BranchManager {
         return "";
     }
 
-    private static void writeTreeToWorkdirAndIndex(final IndexMap oldTree, final IndexMap newTree) {
-        Path root = Paths.get(".").toAbsolutePath().normalize();
-
-        for (String path : oldTree.keySet()) {
-            if (!newTree.containsKey(path)) {
-                try {
-                    Files.deleteIfExists(root.resolve(path));
-                } catch (IOException ignored) {
-                }
-            }
-        }
-
-        for (Map.Entry<String, String> entry : newTree.entrySet()) {
-            String path = entry.getKey();
-            String blobHash = entry.getValue();
-
-            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(blobHash);
-            if (!"blob".equals(obj.type())) continue;
-
-            try {
-                Path filePath = root.resolve(path);
-                Files.createDirectories(filePath.getParent());
-                Utils.writeFile(filePath, obj.content());
-            } catch (IOException e) {
-                System.err.println("Error writing file " + path + ": " + e.getMessage());
-            }
-        }
-
-        IndexManager.writeIndex(newTree);
-    }
-
     public static List<String> listBranches() {
         List<String> out = new ArrayList<>();
         String currentBranch = currentBranchName();
@@ -87,7 +56,7 @@ public class BranchManager {
                 }
             });
         } catch (IOException e) {
-            System.err.println("Error listing branches: " + e.getMessage());
+            Output.error("Error listing branches: " + e.getMessage());
         }
 
         return out;
@@ -95,70 +64,70 @@ public class BranchManager {
 
     public static void createBranch(final String name) {
         if (name == null || name.isEmpty()) {
-            System.out.println("Branch name required.");
+            Output.println("Branch name required.");
             return;
         }
 
         String headCommit = CommitManager.readRefHead();
         if (headCommit.isEmpty()) {
-            System.out.println("Cannot create branch without any commits.");
+            Output.println("Cannot create branch without any commits.");
             return;
         }
 
         Path refPath = Paths.get(REFS_HEADS_DIR, name);
         if (Files.exists(refPath)) {
-            System.out.println("Branch already exists: " + name);
+            Output.println("Branch already exists: " + name);
             return;
         }
 
         try {
             Files.createDirectories(refPath.getParent());
             Utils.writeFile(refPath, headCommit + "\n");
-            System.out.println("Created branch " + name);
+            Output.println("Created branch " + name);
         } catch (IOException e) {
-            System.err.println("Error creating branch: " + e.getMessage());
+            Output.error("Error creating branch: " + e.getMessage());
         }
     }
 
     public static void deleteBranch(final String name) {
         if (name == null || name.isEmpty()) {
-            System.out.println("Usage: smk branch -d <name>");
+            Output.println("Usage: smk branch -d <name>");
             return;
         }
 
         String current = currentBranchName();
         if (name.equals("master")) {
-            System.out.println("fatal: cannot delete master branch");
+            Output.println("fatal: cannot delete master branch");
             return;
         }
         if (name.equals(current)) {
-            System.out.println("fatal: cannot delete the current checked-out branch");
+            Output.println("fatal: cannot delete the current checked-out branch");
             return;
         }
 
         Path refPath = Paths.get(REFS_HEADS_DIR, name);
         if (!Files.exists(refPath)) {
-            System.out.println("Branch not found: " + name);
+            Output.println("Branch not found: " + name);
             return;
         }
 
         try {
             Files.delete(refPath);
-            System.out.println("Deleted branch " + name);
+            Output.println("Deleted branch " + name);
         } catch (IOException e) {
-            System.err.println("Error deleting branch: " + e.getMessage());
+            Output.error("Error deleting branch: " + e.getMessage());
         }
     }
 
     public static void checkoutBranch(final String name) {
         if (name == null || name.isEmpty()) {
-            System.out.println("Usage: smk checkout <branch>");
+            Output.println("Usage: smk checkout <branch>");
             return;
         }
 
         Path refPath = Paths.get(REFS_HEADS_DIR, name);
         if (!Files.exists(refPath)) {
-            System.out.println("Branch not found: " + name);
+            Output.println("Branch not found: " + name);
             return;
         }
 
@@ -166,12 +135,12 @@ public class BranchManager {
         try {
             targetCommit = Utils.readFileStr(refPath.toString()).trim();
         } catch (IOException e) {
-            System.err.println("Error reading branch reference: " + e.getMessage());
+            Output.error("Error reading branch reference: " + e.getMessage());
             return;
         }
 
         if (targetCommit.isEmpty()) {
-            System.out.println("Branch has no commits yet: " + name);
+            Output.println("Branch has no commits yet: " + name);
             return;
         }
 
@@ -193,7 +162,7 @@ public class BranchManager {
                 break;
             }
             try {
-                String workHash = ObjectManager.hashBlobFromFile(path);
+                String workHash = IndexManager.hashWorkingFile(idx, path);
                 if (!workHash.equals(kv.getValue())) {
                     hasUncommitted = true;
                     break;
@@ -204,18 +173,17 @@ public class BranchManager {
         }
         
         if (hasUncommitted) {
-            System.out.println("Warning: You have uncommitted changes. They may be overwritten.");
+            Output.println("Warning: You have uncommitted changes. They may be overwritten.");
         }
 
-        IndexMap oldTree = CommitManager.readHeadTree();
         IndexMap newTree = CommitManager.readTreeFromCommit(targetCommit);
-        writeTreeToWorkdirAndIndex(oldTree, newTree);
+        CheckoutManager.checkout(headTree, newTree);
 
         try {
             Utils.writeFile(Paths.get(HEAD_FILE), "ref: refs/heads/" + name + "\n");
-            System.out.println("Switched to branch '" + name + "'");
+            Output.println("Switched to branch '" + name + "'");
         } catch (IOException e) {
-            System.err.println("Error updating HEAD: " + e.getMessage());
+            Output.error("Error updating HEAD: " + e.getMessage());
         }
     }
 
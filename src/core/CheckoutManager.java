@@ -0,0 +1,90 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Moves the working tree and the index from one snapshot to another, for checkout, merge and revert.
+ *
+ * Only paths whose blob differs between the two snapshots are touched: removed paths are deleted,
+ * added or changed ones written. When both snapshots were read from trees the difference comes from
+ * walking the two trees and skipping identical subtrees; otherwise the two maps are compared.
+ * Files are written by {@link ParallelCheckout}. The new index keeps the stat data of untouched
+ * files and records fresh stat data for written ones, so the next status or add does not have
+ * to re-hash them.
+ */
+public class CheckoutManager {
+
+    // One path whose working file has to change; hash is null for a removal.
+    private record Update(String path, String hash) {}
+
+    /**
+     * Updates the working tree from {@code oldTree} to {@code newTree} and writes {@code newTree} as the index.
+     * Tracked files missing from the working tree are restored even when unchanged between the snapshots.
+     * @param oldTree The snapshot the working tree currently reflects.
+     * @param newTree The snapshot to switch to.
+     */
+    public static void checkout(final IndexMap oldTree, final IndexMap newTree) {
+        List<Update> updates = changedPaths(oldTree, newTree);
+
+        for (Update u : updates) {
+            if (u.hash() != null) continue;
+            try {
+                Files.deleteIfExists(Paths.get(u.path()));
+            } catch (IOException e) {
+                Output.error("Error deleting file " + u.path() + ": " + e.getMessage());
+            }
+        }
+
+        IndexMap idx = new IndexMap();
+        idx.putAll(newTree);
+        idx.copyStatsFrom(IndexManager.readIndex());
+
+        Map<String, String> writes = new TreeMap<>();
+        for (Update u : updates) {
+            if (u.hash() != null) writes.put(u.path(), u.hash());
+        }
+        // Unchanged paths are left alone unless the file is gone
+        for (Map.Entry<String, String> kv : newTree.entrySet()) {
+            if (Objects.equals(kv.getValue(), oldTree.get(kv.getKey())) && !Files.exists(Paths.get(kv.getKey()))) {
+                writes.put(kv.getKey(), kv.getValue());
+            }
+        }
+
+        ParallelCheckout.writeFiles(writes, r -> {
+            if (r.error() != null) {
+                Output.error("Error writing file " + r.path() + ": " + r.error().getMessage());
+            } else {
+                idx.putStat(r.path(), r.stat());
+            }
+        });
+        IndexManager.writeIndex(idx);
+    }
+
+    // Lists the paths removed, added or changed between two snapshots.
+    private static List<Update> changedPaths(final IndexMap oldTree, final IndexMap newTree) {
+        List<Update> updates = new ArrayList<>();
+        String oldRoot = oldTree.getTreeHash("");
+        String newRoot = newTree.getTreeHash("");
+        if (oldRoot != null && newRoot != null) {
+            TreeManager.walk(new String[] {oldRoot, newRoot}, TreeManager::sameSubtree, (path, hashes) -> {
+                if (!Objects.equals(hashes[0], hashes[1])) updates.add(new Update(path, hashes[1]));
+            });
+            return updates;
+        }
+
+        for (String path : oldTree.keySet()) {
+            if (!newTree.containsKey(path)) updates.add(new Update(path, null));
+        }
+        for (Map.Entry<String, String> kv : newTree.entrySet()) {
+            if (!kv.getValue().equals(oldTree.get(kv.getKey()))) updates.add(new Update(kv.getKey(), kv.getValue()));
+        }
+        return updates;
+    }
+}
@@ -0,0 +1,62 @@
+package core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Command-line output: ordinary output goes through a 64 KiB buffer that is only flushed
+ * when full, when an error is written, or when the command ends. {@code System.out.println}
+ * locks and flushes on every line, which shows up in the time of commands printing one
+ * line per file. Errors go to standard error unbuffered, after any pending output, so the
+ * two streams keep their relative order on a terminal.
+ */
+public class CliReporter implements Reporter {
+
+    private static final int BUFFER = 1 << 16;
+
+    private final Writer out;
+    private final PrintStream err;
+
+    public CliReporter(final PrintStream out, final PrintStream err) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), BUFFER);
+        this.err = err;
+    }
+
+    @Override
+    public synchronized void println(final String line) {
+        try {
+            out.write(line);
+            out.write(System.lineSeparator());
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+
+    @Override
+    public synchronized void print(final String text) {
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+
+    @Override
+    public synchronized void error(final String line) {
+        flush();
+        err.println(line);
+    }
+
+    @Override
+    public synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+}
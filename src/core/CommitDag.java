@@ -0,0 +1,106 @@
+package core;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The commit history of a repository as numbered nodes, for walks that visit many commits.
+ *
+ * Commits in the commit-graph are numbered by their position in it, so following their parents
+ * is a read from the mapped file with no ID lookup. Other commits are read from their objects
+ * the first time they are met and numbered after the graph's. Not thread-safe.
+ */
+public final class CommitDag {
+
+    private final Path objectsDir;
+    private final CommitGraph graph;
+    private final int graphSize;
+
+    // Commits outside the commit-graph, numbered from graphSize on
+    private final Map<String, Integer> extraNodes = new HashMap<>();
+    private final List<CommitGraph.Commit> extraCommits = new ArrayList<>();
+    private final List<int[]> extraParents = new ArrayList<>();
+
+    private CommitDag(Path objectsDir, CommitGraph graph) {
+        this.objectsDir = objectsDir;
+        this.graph = graph;
+        this.graphSize = graph == null ? 0 : graph.size();
+    }
+
+    public static CommitDag open() {
+        return open(Paths.get(".smk/objects"));
+    }
+
+    public static CommitDag open(final Path objectsDir) {
+        return new CommitDag(objectsDir, CommitGraphManager.graph(objectsDir));
+    }
+
+    /**
+     * Returns the node of a commit.
+     * @return The node, or -1 if the object is missing or not a commit.
+     */
+    public int node(final String id) {
+        if (id == null || id.isEmpty()) return -1;
+        if (graph != null) {
+            int pos = graph.find(id);
+            if (pos >= 0) return pos;
+        }
+        Integer known = extraNodes.get(id);
+        if (known != null) return known;
+
+        CommitGraph.Commit commit = CommitGraphManager.readCommit(objectsDir, id);
+        int node = -1;
+        if (commit != null) {
+            node = graphSize + extraCommits.size();
+            extraCommits.add(commit);
+            extraParents.add(null);
+        }
+        extraNodes.put(id, node);
+        return node;
+    }
+
+    public String id(final int node) {
+        return node < graphSize ? graph.id(node) : extraCommits.get(node - graphSize).id();
+    }
+
+    /**
+     * Returns the parent nodes of a commit, first parent first. Missing parents are left out.
+     */
+    public int[] parents(final int node) {
+        if (node < graphSize) return graph.parents(node);
+        int i = node - graphSize;
+        int[] ps = extraParents.get(i);
+        if (ps == null) {
+            List<String> ids = extraCommits.get(i).parents();
+            int[] found = new int[ids.size()];
+            int n = 0;
+            for (String p : ids) {
+                int pn = node(p);
+                if (pn >= 0) found[n++] = pn;
+            }
+            ps = n == found.length ? found : Arrays.copyOf(found, n);
+            extraParents.set(i, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * Returns the generation number of a commit, or {@link CommitGraph#GENERATION_UNKNOWN}
+     * for commits outside the commit-graph.
+     */
+    public int generation(final int node) {
+        return node < graphSize ? graph.generation(node) : CommitGraph.GENERATION_UNKNOWN;
+    }
+
+    /**
+     * Returns the commit date in seconds since the epoch.
+     */
+    public long date(final int node) {
+        return node < graphSize ? graph.date(node) : extraCommits.get(node - graphSize).date();
+    }
+}
@@ -0,0 +1,318 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only, memory-mapped view of a commit-graph file (.smk/objects/info/commit-graph).
+ * It lists commits in ID order with their tree, parents, date and generation number, so walking
+ * history is a fanout lookup plus a binary search per commit instead of reading and parsing
+ * commit objects. Parents are stored as positions in the same file and need no lookup at all.
+ *
+ * The generation of a commit is one more than the highest generation of its parents (1 for a
+ * root commit): a commit can only be an ancestor of commits with a higher generation.
+ *
+ * Layout (integers are big-endian):
+ * <pre>
+ *   header   "SMKG" | version:int | commits:int | extraParents:int
+ *   fanout   256 x int: number of commits whose first ID byte is at most i
+ *   ids      commits x ID_BYTES, ascending
+ *   data     commits x { tree:ID_BYTES | parent1:int | parent2:int | generation:int | date:long }
+ *   extra    extraParents x int: second and later parents of commits with more than two parents,
+ *            the last one of each commit with LAST_PARENT set
+ *   trailer  crc32c:int over everything before it
+ * </pre>
+ * A parent is a commit position, or NO_PARENT; parent2 with EXTRA_PARENTS set instead points
+ * into the extra list. Commits written after the file are simply not in it.
+ */
+public final class CommitGraph {
+
+    public static final int ID_BYTES = PackFile.ID_BYTES;
+    /** Generation reported for commits that are not in a commit-graph: later than anything known. */
+    public static final int GENERATION_UNKNOWN = Integer.MAX_VALUE;
+
+    private static final byte[] MAGIC = {'S', 'M', 'K', 'G'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int DATA_SIZE = ID_BYTES + 4 + 4 + 4 + 8;
+    private static final int NO_PARENT = 0x70000000;
+    private static final int EXTRA_PARENTS = 0x80000000;
+    private static final int LAST_PARENT = 0x80000000;
+    private static final int[] NO_PARENTS = {};
+
+
+    /**
+     * A commit as far as history walks are concerned.
+     * @param generation Its generation number, or GENERATION_UNKNOWN when not taken from a commit-graph.
+     */
+    public record Commit(String id, String tree, List<String> parents, long date, int generation) {}
+
+    private final Path path;
+    private final ByteBuffer buf;
+    private final int count;
+    private final int idsStart;
+    private final int dataStart;
+    private final int extraStart;
+
+    private CommitGraph(Path path, ByteBuffer buf, int count) {
+        this.path = path;
+        this.buf = buf;
+        this.count = count;
+        this.idsStart = HEADER_SIZE + FANOUT_SIZE;
+        this.dataStart = idsStart + count * ID_BYTES;
+        this.extraStart = dataStart + count * DATA_SIZE;
+    }
+
+    /**
+     * Maps a commit-graph file, validating its header and checksum.
+     * @return The graph, or null if the file is missing.
+     * @throws IOException If the file is truncated or corrupt.
+     */
+    public static CommitGraph open(final Path path) throws IOException {
+        ByteBuffer buf = Utils.mapReadOnly(path);
+        if (buf == null) return null;
+
+        int len = buf.limit();
+        if (len < HEADER_SIZE + FANOUT_SIZE + 4) throw new IOException("commit-graph truncated");
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(i) != MAGIC[i]) throw new IOException("not a commit-graph file");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION) throw new IOException("unsupported commit-graph version " + version);
+        int count = buf.getInt(8);
+        int extra = buf.getInt(12);
+        if (count < 0 || extra < 0
+                || (long) HEADER_SIZE + FANOUT_SIZE + (long) count * (ID_BYTES + DATA_SIZE) + extra * 4L + 4 != len) {
+            throw new IOException("commit-graph truncated");
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate().position(0).limit(len - 4));
+        if ((int) crc.getValue() != buf.getInt(len - 4)) {
+            throw new IOException("commit-graph corrupt: checksum mismatch");
+        }
+        return new CommitGraph(path, buf, count);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * The number of commits in the graph.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Looks up a commit ID.
+     * @return Its position, or -1 if the commit is not in the graph.
+     */
+    public int find(final String id) {
+        byte[] raw = Utils.hexToBytes(id);
+        if (raw == null || raw.length != ID_BYTES) return -1;
+        int first = raw[0] & 0xFF;
+        int lo = first == 0 ? 0 : buf.getInt(HEADER_SIZE + (first - 1) * 4);
+        int hi = buf.getInt(HEADER_SIZE + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(mid, raw);
+            if (cmp == 0) return mid;
+            if (cmp < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the hex ID of the commit at a position.
+     */
+    public String id(final int pos) {
+        return hexAt(idsStart + pos * ID_BYTES);
+    }
+
+    /**
+     * Returns the root tree hash of the commit at a position.
+     */
+    public String tree(final int pos) {
+        return hexAt(dataStart + pos * DATA_SIZE);
+    }
+
+    /**
+     * Returns the positions of the parents of the commit at a position, first parent first.
+     */
+    public int[] parents(final int pos) {
+        int base = dataStart + pos * DATA_SIZE + ID_BYTES;
+        int p1 = buf.getInt(base);
+        int p2 = buf.getInt(base + 4);
+        if (p1 == NO_PARENT) return NO_PARENTS;
+        if (p2 == NO_PARENT) return new int[] {p1};
+        if ((p2 & EXTRA_PARENTS) == 0) return new int[] {p1, p2};
+
+        List<Integer> rest = new ArrayList<>();
+        int at = extraStart + (p2 & ~EXTRA_PARENTS) * 4;
+        while (true) {
+            int e = buf.getInt(at);
+            rest.add(e & ~LAST_PARENT);
+            if ((e & LAST_PARENT) != 0) break;
+            at += 4;
+        }
+        int[] all = new int[rest.size() + 1];
+        all[0] = p1;
+        for (int i = 0; i < rest.size(); i++) all[i + 1] = rest.get(i);
+        return all;
+    }
+
+    public int generation(final int pos) {
+        return buf.getInt(dataStart + pos * DATA_SIZE + ID_BYTES + 8);
+    }
+
+    /**
+     * Returns the commit date in seconds since the epoch.
+     */
+    public long date(final int pos) {
+        return buf.getLong(dataStart + pos * DATA_SIZE + ID_BYTES + 12);
+    }
+
+    /**
+     * Returns the commit at a position with its parent IDs resolved.
+     */
+    public Commit commit(final int pos) {
+        int[] ps = parents(pos);
+        List<String> ids = new ArrayList<>(ps.length);
+        for (int p : ps) ids.add(id(p));
+        return new Commit(id(pos), tree(pos), ids, date(pos), generation(pos));
+    }
+
+    private String hexAt(final int off) {
+        byte[] raw = new byte[ID_BYTES];
+        buf.get(off, raw);
+        return Utils.bytesToHex(raw);
+    }
+
+    private int compareId(final int pos, final byte[] id) {
+        int base = idsStart + pos * ID_BYTES;
+        for (int k = 0; k < ID_BYTES; k++) {
+            int a = buf.get(base + k) & 0xFF;
+            int b = id[k] & 0xFF;
+            if (a != b) return a - b;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes a commit-graph file for a set of commits, computing their generation numbers.
+     * Parents that are not among the commits are left out. The file is written next to its
+     * target and moved into place, so readers never see a partial file.
+     * @param path The file to write.
+     * @param commits The commits; the generation numbers given are ignored.
+     */
+    public static void write(final Path path, final Collection<Commit> commits) throws IOException {
+        List<Commit> sorted = new ArrayList<>(commits);
+        sorted.sort((a, b) -> a.id().compareTo(b.id()));
+        int n = sorted.size();
+        Map<String, Integer> positions = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) positions.put(sorted.get(i).id(), i);
+
+        int[][] parents = new int[n][];
+        int extra = 0;
+        for (int i = 0; i < n; i++) {
+            List<Integer> ps = new ArrayList<>();
+            for (String p : sorted.get(i).parents()) {
+                Integer at = positions.get(p);
+                if (at != null) ps.add(at);
+            }
+            parents[i] = ps.stream().mapToInt(Integer::intValue).toArray();
+            if (parents[i].length > 2) extra += parents[i].length - 1;
+        }
+        int[] generations = generations(parents);
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + FANOUT_SIZE + n * (ID_BYTES + DATA_SIZE) + extra * 4 + 4);
+        out.put(MAGIC).putInt(VERSION).putInt(n).putInt(extra);
+        int[] fanout = new int[256];
+        for (Commit c : sorted) fanout[Utils.hexToBytes(c.id())[0] & 0xFF]++;
+        int total = 0;
+        for (int b = 0; b < 256; b++) {
+            total += fanout[b];
+            out.putInt(total);
+        }
+        for (Commit c : sorted) out.put(Utils.hexToBytes(c.id()));
+
+        ByteBuffer extraList = ByteBuffer.allocate(extra * 4);
+        for (int i = 0; i < n; i++) {
+            Commit c = sorted.get(i);
+            byte[] tree = Utils.hexToBytes(c.tree());
+            out.put(tree != null && tree.length == ID_BYTES ? tree : new byte[ID_BYTES]);
+            int[] ps = parents[i];
+            out.putInt(ps.length > 0 ? ps[0] : NO_PARENT);
+            if (ps.length <= 2) {
+                out.putInt(ps.length == 2 ? ps[1] : NO_PARENT);
+            } else {
+                out.putInt(EXTRA_PARENTS | extraList.position() / 4);
+                for (int k = 1; k < ps.length; k++) {
+                    extraList.putInt(k == ps.length - 1 ? ps[k] | LAST_PARENT : ps[k]);
+                }
+            }
+            out.putInt(generations[i]);
+            out.putLong(c.date());
+        }
+        out.put(extraList.flip());
+
+        CRC32C crc = new CRC32C();
+        crc.update(out.array(), 0, out.position());
+        out.putInt((int) crc.getValue());
+
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".lock");
+        Files.write(tmp, out.array());
+        Utils.replaceFile(tmp, path);
+    }
+
+    // Post-order over the parent links, iteratively so long histories cannot overflow the stack.
+    private static int[] generations(final int[][] parents) {
+        int n = parents.length;
+        int[] gen = new int[n];
+        boolean[] expanded = new boolean[n];
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int start = 0; start < n; start++) {
+            if (gen[start] != 0) continue;
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                int c = stack.peek();
+                if (gen[c] != 0) {
+                    stack.pop();
+                    continue;
+                }
+                expanded[c] = true;
+                int max = 0;
+                boolean ready = true;
+                for (int p : parents[c]) {
+                    if (gen[p] != 0) {
+                        max = Math.max(max, gen[p]);
+                    } else if (!expanded[p]) {
+                        ready = false;
+                        stack.push(p);
+                    }
+                    // Expanded but unfinished: only a cycle gets here, and the edge is ignored
+                }
+                if (ready) {
+                    gen[c] = max + 1;
+                    stack.pop();
+                }
+            }
+        }
+        return gen;
+    }
+}
@@ -0,0 +1,163 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads commits for history walks (log, merge, the GUI graph) and maintains the commit-graph
+ * file ("smk commit-graph write", and after "smk gc").
+ *
+ * Commits in the commit-graph are answered from the mapped file; others, such as commits made
+ * since it was written, are read from their objects. Commits never change, so a graph that is
+ * out of date is still correct for every commit it lists; the open graph is cached per objects
+ * directory and only replaced when this process writes a new one.
+ */
+public class CommitGraphManager {
+
+    private static final String OBJECTS_DIR = ".smk/objects";
+
+    // Optional.empty() caches the absence of a graph as well
+    private static final Map<Path, Optional<CommitGraph>> cache = new ConcurrentHashMap<>();
+
+    public static Path graphFile(final Path objectsDir) {
+        return objectsDir.resolve("info").resolve("commit-graph");
+    }
+
+    /**
+     * Returns the commit-graph of a repository, opening it on first use.
+     * @return The graph, or null if there is none or it cannot be read.
+     */
+    public static CommitGraph graph(final Path objectsDir) {
+        return cache.computeIfAbsent(key(objectsDir), k -> {
+            try {
+                return Optional.ofNullable(CommitGraph.open(graphFile(k)));
+            } catch (IOException e) {
+                Output.error("Error reading commit-graph: " + e.getMessage());
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    public static CommitGraph.Commit readCommit(final String id) {
+        return readCommit(Paths.get(OBJECTS_DIR), id);
+    }
+
+    /**
+     * Reads a commit, from the commit-graph when it lists it and from the commit object otherwise.
+     * @return The commit, or null if the object is missing or not a commit.
+     */
+    public static CommitGraph.Commit readCommit(final Path objectsDir, final String id) {
+        if (id == null || id.isEmpty()) return null;
+        CommitGraph graph = graph(objectsDir);
+        if (graph != null) {
+            int pos = graph.find(id);
+            if (pos >= 0) return graph.commit(pos);
+        }
+        return ObjectManager.commitCache().get(id, k -> {
+            ObjectManager.ObjectContent obj = ObjectManager.readObject(objectsDir, k);
+            return "commit".equals(obj.type()) ? parseCommit(k, obj.content()) : null;
+        });
+    }
+
+    /**
+     * Parses the header of a commit object.
+     */
+    public static CommitGraph.Commit parseCommit(final String id, final String content) {
+        String tree = "";
+        List<String> parents = new ArrayList<>();
+        long date = 0;
+        for (String line : content.split("\n")) {
+            // References only appear in the header, before the message
+            if (line.isEmpty()) break;
+            if (line.startsWith("tree ")) {
+                tree = line.substring("tree ".length());
+            } else if (line.startsWith("parent ")) {
+                String p = line.substring("parent ".length());
+                if (!p.isEmpty()) parents.add(p);
+            } else if (line.startsWith("date ")) {
+                try {
+                    date = Long.parseLong(line.substring("date ".length()).trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return new CommitGraph.Commit(id, tree, parents, date, CommitGraph.GENERATION_UNKNOWN);
+    }
+
+    /**
+     * Writes the commit-graph of the current repository and reports its size.
+     */
+    public static void write() {
+        Path objectsDir = Paths.get(OBJECTS_DIR);
+        if (!Files.isDirectory(objectsDir)) {
+            Output.println("fatal: not an smk repository");
+            return;
+        }
+        try {
+            long t0 = System.nanoTime();
+            int n = write(objectsDir);
+            Output.println("Wrote commit-graph with " + n + " commits (" + (System.nanoTime() - t0) / 1_000_000 + " ms)");
+        } catch (IOException e) {
+            Output.error("Error writing commit-graph: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a commit-graph with every commit reachable from the refs and a detached HEAD.
+     * Commits already in the current graph are taken from it rather than read again.
+     * @return The number of commits written.
+     */
+    public static int write(final Path objectsDir) throws IOException {
+        Deque<String> pending = new ArrayDeque<>(tips(key(objectsDir).getParent()));
+        Map<String, CommitGraph.Commit> commits = new HashMap<>();
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (id.isEmpty() || commits.containsKey(id)) continue;
+            CommitGraph.Commit c = readCommit(objectsDir, id);
+            if (c == null) continue;
+            commits.put(id, c);
+            for (String p : c.parents()) pending.push(p);
+        }
+
+        CommitGraph.write(graphFile(objectsDir), commits.values());
+        cache.remove(key(objectsDir));
+        return commits.size();
+    }
+
+    // The commits the refs and a detached HEAD point to.
+    private static Set<String> tips(final Path smkDir) throws IOException {
+        Set<String> tips = new LinkedHashSet<>();
+        Path refsDir = smkDir.resolve("refs");
+        if (Files.isDirectory(refsDir)) {
+            List<Path> refs;
+            try (Stream<Path> s = Files.walk(refsDir)) {
+                refs = s.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path ref : refs) tips.add(Files.readString(ref).trim());
+        }
+        Path head = smkDir.resolve("HEAD");
+        if (Files.exists(head)) {
+            String s = Files.readString(head).trim();
+            if (!s.startsWith("ref: ")) tips.add(s);
+        }
+        return tips;
+    }
+
+    private static Path key(final Path objectsDir) {
+        return objectsDir.toAbsolutePath().normalize();
+    }
+}
@@ -5,9 +5,7 @@ import java.io.StringReader;
 import java.io.BufferedReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
 import java.util.Date;
-import java.util.ArrayList;
 
 /**
  * Builds commit objects, writes trees, and reads HEAD/refs to track repository history.
@@ -18,46 +16,30 @@ public class CommitManager {
     private static final String HEAD_FILE = ".smk/HEAD";
 
     public static IndexMap readTree(final String treeHash) {
-        IndexMap tree = new IndexMap();
-        if (treeHash == null || treeHash.isEmpty()) return tree;
-
-        ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(treeHash);
-        if (!"tree".equals(obj.type())) return tree;
-
-        try (BufferedReader reader = new BufferedReader(new StringReader(obj.content()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.isEmpty()) continue;
-                int tab = line.indexOf('\t');
-                if (tab == -1) continue;
-
-                String path = line.substring(0, tab);
-                String blob = line.substring(tab + 1);
-
-                if (!path.isEmpty() && !blob.isEmpty()) {
-                    tree.put(path, blob);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading tree object: " + e.getMessage());
-        }
-        return tree;
+        return TreeManager.readTree(treeHash);
     }
 
     public static String writeTreeFromIndex(final IndexMap idx) {
-        StringBuilder content = new StringBuilder();
-        for (Map.Entry<String, String> kv : idx.entrySet()) {
-            content.append(kv.getKey()).append("\t").append(kv.getValue()).append("\n");
-        }
-        return ObjectManager.hashAndStoreObject("tree", content.toString());
+        return TreeManager.writeTree(idx, null);
     }
 
-    public static IndexMap readTreeFromCommit(final String commitHash) {
-        IndexMap empty = new IndexMap();
-        if (commitHash == null || commitHash.isEmpty()) return empty;
+    /**
+     * Writes the tree of a snapshot, reusing the tree objects of directories unchanged from {@code base}.
+     * @param idx The snapshot to write.
+     * @param base The tree the snapshot was derived from (as returned by readTree), or null.
+     */
+    public static String writeTreeFromIndex(final IndexMap idx, final IndexMap base) {
+        return TreeManager.writeTree(idx, base);
+    }
+
+    /**
+     * Returns the root tree hash of a commit, or "" if it is not a commit.
+     */
+    public static String readTreeHash(final String commitHash) {
+        if (commitHash == null || commitHash.isEmpty()) return "";
 
         ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(commitHash);
-        if (!"commit".equals(obj.type())) return empty;
+        if (!"commit".equals(obj.type())) return "";
 
         String treeHash = "";
         try (BufferedReader reader = new BufferedReader(new StringReader(obj.content()))) {
@@ -70,10 +52,13 @@ public class CommitManager {
                 if (line.isEmpty()) break;
             }
         } catch (IOException e) {
-            System.err.println("Error reading commit object: " + e.getMessage());
+            Output.error("Error reading commit object: " + e.getMessage());
         }
+        return treeHash;
+    }
 
-        return readTree(treeHash);
+    public static IndexMap readTreeFromCommit(final String commitHash) {
+        return readTree(readTreeHash(commitHash));
     }
 
     public static IndexMap readHeadTree() {
@@ -120,17 +105,28 @@ public class CommitManager {
         try {
             Utils.writeFile(refPath, commitHash + "\n");
         } catch (IOException e) {
-            System.err.println("Error writing reference file: " + e.getMessage());
+            Output.error("Error writing reference file: " + e.getMessage());
         }
     }
 
+    /**
+     * After a commit the index holds the committed snapshot, keeping the stat data
+     * of the staged entries so the next add/status does not have to re-hash them.
+     */
+    private static void writeIndexSnapshot(final IndexMap tree, final IndexMap staged) {
+        IndexMap next = new IndexMap();
+        next.putAll(tree);
+        next.copyStatsFrom(staged);
+        IndexManager.writeIndex(next);
+    }
+
     public static void createCommit(final String message, boolean amend) {
         String parent = readRefHead();
         IndexMap headTree = readHeadTree();
 
         if (amend) {
             if (parent.isEmpty()) {
-                System.out.println("Nothing to amend.");
+                Output.println("Nothing to amend.");
                 return;
             }
 
@@ -138,21 +134,9 @@ public class CommitManager {
             IndexMap idx = IndexManager.readIndex();
             IndexMap parentTree = readTreeFromCommit(parent);
 
-            // Build a full snapshot starting from parentTree, then apply staged changes
+            // The index holds the complete next snapshot, deletions included
             IndexMap newTree = new IndexMap();
-            newTree.putAll(parentTree);
-
-            // Drop files that no longer exist in the working directory (treat as deletions)
-            for (String path : new ArrayList<>(newTree.keySet())) {
-                if (!java.nio.file.Files.exists(java.nio.file.Paths.get(path))) {
-                    newTree.remove(path);
-                }
-            }
-
-            // Apply staged updates (add / modify)
-            for (Map.Entry<String, String> kv : idx.entrySet()) {
-                newTree.put(kv.getKey(), kv.getValue());
-            }
+            newTree.putAll(idx);
 
             // If index was empty (amend message only), keep previous snapshot
             if (idx.isEmpty()) {
@@ -173,7 +157,7 @@ public class CommitManager {
                         if (line.isEmpty()) break;
                     }
                 } catch (IOException e) {
-                    System.err.println("Error reading parent commit for amend: " + e.getMessage());
+                    Output.error("Error reading parent commit for amend: " + e.getMessage());
                 }
 
                 parent = grandParent;
@@ -181,7 +165,7 @@ public class CommitManager {
                 parent = "";
             }
             
-            String treeHash = writeTreeFromIndex(newTree);
+            String treeHash = writeTreeFromIndex(newTree, parentTree);
             StringBuilder meta = new StringBuilder();
             meta.append("tree ").append(treeHash).append("\n");
             if (parent != null && !parent.isEmpty()) meta.append("parent ").append(parent).append("\n");
@@ -194,37 +178,26 @@ public class CommitManager {
 
             String commitHash = ObjectManager.hashAndStoreObject("commit", meta.toString());
             writeRefHead(commitHash);
-            IndexManager.writeIndex(new IndexMap());
+            writeIndexSnapshot(newTree, idx);
 
-            System.out.println("Committed: " + commitHash);
+            Output.println("Committed: " + commitHash);
             return;
         }
 
         // Regular commit
         IndexMap idx = IndexManager.readIndex();
 
-        // Start from HEAD snapshot so previously committed files remain present
+        // The index holds every tracked file, so it is the next snapshot as it stands:
+        // a file removed from it (add . after deleting it) is a deletion
         IndexMap newTree = new IndexMap();
-        newTree.putAll(headTree);
-
-        // Remove files that were deleted in the working directory
-        for (String path : new ArrayList<>(newTree.keySet())) {
-            if (!java.nio.file.Files.exists(java.nio.file.Paths.get(path))) {
-                newTree.remove(path);
-            }
-        }
-
-        // Apply staged changes (add/modify)
-        for (Map.Entry<String, String> kv : idx.entrySet()) {
-            newTree.put(kv.getKey(), kv.getValue());
-        }
+        newTree.putAll(idx);
 
         if (newTree.isEmpty()) {
-            System.out.println("No changes to commit.");
+            Output.println("No changes to commit.");
             return;
         }
 
-        String treeHash = writeTreeFromIndex(newTree);
+        String treeHash = writeTreeFromIndex(newTree, headTree);
         StringBuilder meta = new StringBuilder();
         meta.append("tree ").append(treeHash).append("\n");
         if (parent != null && !parent.isEmpty()) meta.append("parent ").append(parent).append("\n");
@@ -239,8 +212,8 @@ public class CommitManager {
 
         writeRefHead(commitHash);
 
-        IndexManager.writeIndex(new IndexMap());
+        writeIndexSnapshot(newTree, idx);
 
-        System.out.println("Committed: " + commitHash);
+        Output.println("Committed: " + commitHash);
     }
 }
\ No newline at end of file
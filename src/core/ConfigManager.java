@@ -0,0 +1,107 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads and writes repository settings stored in .smk/config as {@code key = value} lines.
+ */
+public class ConfigManager {
+
+    private static final String CONFIG_FILE = ".smk/config";
+
+    // Settings are read once per process; set() and reload() keep the cache in sync.
+    private static Map<String, String> cache;
+    // Moves on whenever the settings may have changed, for values derived from them
+    private static volatile long generation;
+
+    /**
+     * A number that changes whenever the settings are written or reloaded.
+     */
+    public static long generation() {
+        return generation;
+    }
+
+    public static synchronized String get(final String key, final String def) {
+        return load().getOrDefault(key, def);
+    }
+
+    public static int getInt(final String key, final int def) {
+        String v = get(key, null);
+        if (v == null) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(final String key, final boolean def) {
+        String v = get(key, null);
+        if (v == null) return def;
+        return v.equalsIgnoreCase("true") || v.equals("1") || v.equalsIgnoreCase("yes");
+    }
+
+    public static synchronized void set(final String key, final String value) {
+        Map<String, String> cfg = load();
+        cfg.put(key, value);
+        generation++;
+
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> kv : cfg.entrySet()) {
+            out.append(kv.getKey()).append(" = ").append(kv.getValue()).append("\n");
+        }
+        try {
+            Utils.writeFile(Paths.get(CONFIG_FILE), out.toString());
+        } catch (IOException e) {
+            Output.error("Error writing config file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns all settings, sorted by key.
+     */
+    public static synchronized Map<String, String> list() {
+        return new TreeMap<>(load());
+    }
+
+    /**
+     * Drops the cached settings so the next lookup re-reads .smk/config.
+     */
+    public static synchronized void reload() {
+        cache = null;
+        generation++;
+    }
+
+    private static Map<String, String> load() {
+        if (cache != null) return cache;
+
+        Map<String, String> cfg = new TreeMap<>();
+        String s;
+        try {
+            s = Utils.readFileStr(CONFIG_FILE);
+        } catch (IOException e) {
+            s = "";
+        }
+
+        try (BufferedReader reader = new BufferedReader(new StringReader(s))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int eq = line.indexOf('=');
+                if (eq == -1) continue;
+                cfg.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+            }
+        } catch (IOException e) {
+            Output.error("Error reading config file: " + e.getMessage());
+        }
+
+        cache = cfg;
+        return cfg;
+    }
+}
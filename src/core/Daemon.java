@@ -0,0 +1,324 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs commands in a long-lived JVM ("smk daemon"), so that a command started from the shell
+ * skips JVM startup, class loading and a cold JIT, and finds the index, the object caches and
+ * the commit-graph already loaded.
+ *
+ * A daemon serves the repository in the directory it was started in, on the Unix domain socket
+ * .smk/daemon.sock. The client sends its arguments and working directory and copies the output
+ * frames it gets back to its own stdout and stderr; the last frame carries the exit status.
+ * Commands run one at a time, in the order they connect. Without a daemon, or if it cannot be
+ * reached, the client runs the command itself.
+ *
+ * With {@code core.fsmonitor = true} the daemon also watches the working tree (see
+ * {@link FsMonitor}), so commands find the file list and the hashes of unchanged files ready.
+ */
+public final class Daemon {
+
+    private static final Path SOCKET = Paths.get(".smk", "daemon.sock");
+
+    // "SMKD", then the protocol version
+    private static final int MAGIC = 0x534d4b44;
+    private static final int VERSION = 1;
+    private static final int MAX_ARGS = 4096;
+    private static final int MAX_STRING = 1 << 20;
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+
+    // Reply frames: output and error data, then the exit status, or a refusal before anything ran
+    private static final byte OUT = 1;
+    private static final byte ERR = 2;
+    private static final byte EXIT = 3;
+    private static final byte REFUSED = 4;
+
+    /**
+     * Runs one command line and returns its exit status.
+     */
+    public interface Runner {
+        int run(String[] args);
+    }
+
+    private Daemon() {}
+
+    /**
+     * Runs a command line on the daemon of the current directory, if there is one, copying its
+     * output to this process's stdout and stderr as it arrives.
+     * @return The exit status of the command, or -1 if no daemon took it and it has to run here.
+     */
+    public static int forward(final String[] args) {
+        if (args.length == 0 || startsDaemon(args) || !Files.exists(SOCKET)) return -1;
+
+        SocketChannel ch;
+        try {
+            ch = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET));
+        } catch (IOException e) {
+            // A socket left behind by a daemon that did not exit cleanly
+            return -1;
+        }
+        try (ch) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, Paths.get("").toAbsolutePath().toString());
+            out.writeInt(args.length);
+            for (String a : args) writeString(out, a);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+            OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+            OutputStream stderr = new FileOutputStream(FileDescriptor.err);
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == EXIT) return in.readInt();
+                if (kind == REFUSED) return -1;
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                (kind == ERR ? stderr : stdout).write(data);
+            }
+        } catch (IOException e) {
+            // The command may have run in part: running it again here could do things twice
+            System.err.println("fatal: lost connection to smk daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Serves commands until "smk daemon stop".
+     * @param runner Runs a command line; output goes through {@link Output}.
+     */
+    public static void serve(final Runner runner) {
+        if (!Files.isDirectory(SOCKET.getParent())) {
+            Output.println("fatal: not an smk repository");
+            return;
+        }
+        if (Files.exists(SOCKET)) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(SOCKET)).close();
+                Output.println("fatal: a daemon is already running for this repository");
+                return;
+            } catch (IOException e) {
+                // Nobody listening: a socket left behind, safe to replace
+            }
+        }
+
+        Path root;
+        try {
+            root = Paths.get("").toRealPath();
+            Files.deleteIfExists(SOCKET);
+        } catch (IOException e) {
+            Output.error("Error starting daemon: " + e.getMessage());
+            return;
+        }
+
+        IndexManager.keepLoaded();
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "smk-daemon-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        if (ConfigManager.getBoolean(FsMonitor.CONFIG_KEY, false)) {
+            FsMonitor m = FsMonitor.start();
+            if (m != null) Output.println("Watching the working tree (" + m.describe() + ")");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(Daemon::removeSocket));
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET));
+            Output.println("smk daemon serving " + root + " (stop with 'smk daemon stop')");
+            Output.flush();
+
+            Reporter console = Output.get();
+            long served = 0;
+            boolean running = true;
+            while (running) {
+                try (SocketChannel ch = server.accept()) {
+                    running = handle(ch, root, runner, console, watchdog, served++);
+                } catch (IOException e) {
+                    Output.error("Error serving command: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Output.error("Error starting daemon: " + e.getMessage());
+        } finally {
+            watchdog.shutdownNow();
+            FsMonitor.stop();
+            removeSocket();
+        }
+    }
+
+    // Runs one request; returns false once the daemon has been asked to stop.
+    private static boolean handle(final SocketChannel ch, final Path root, final Runner runner,
+                                  final Reporter console, final ScheduledExecutorService watchdog,
+                                  final long served) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+
+        // Requests are served one at a time: a client that never sends all of its request is
+        // cut off rather than left blocking every other one
+        ScheduledFuture<?> deadline = watchdog.schedule(() -> closeQuietly(ch), REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        String cwd;
+        String[] args;
+        boolean valid;
+        try {
+            valid = in.readInt() == MAGIC && in.readInt() == VERSION;
+            if (valid) {
+                cwd = readString(in);
+                int argc = in.readInt();
+                if (argc < 0 || argc > MAX_ARGS) throw new IOException("bad argument count " + argc);
+                args = new String[argc];
+                for (int i = 0; i < argc; i++) args[i] = readString(in);
+            } else {
+                cwd = null;
+                args = null;
+            }
+        } catch (ClosedChannelException e) {
+            throw new IOException("timed out reading request");
+        } finally {
+            if (!deadline.cancel(false)) closeQuietly(ch);
+        }
+        if (!ch.isOpen()) throw new IOException("timed out reading request");
+        if (!valid) {
+            out.writeByte(REFUSED);
+            out.flush();
+            return true;
+        }
+
+        // Paths are relative to the working directory: only commands run in this one can be served
+        if (!sameDirectory(cwd, root)) {
+            out.writeByte(REFUSED);
+            out.flush();
+            return true;
+        }
+
+        Output.set(new CliReporter(new PrintStream(new FrameStream(out, OUT)), new PrintStream(new FrameStream(out, ERR), true)));
+        int status;
+        boolean stop = false;
+        try {
+            // Settings may have been edited by hand, or by a command run without the daemon
+            ConfigManager.reload();
+            // Changes made before this request must be known before it looks at the tree
+            FsMonitor monitor = FsMonitor.current();
+            if (monitor != null) monitor.sync();
+            if (args.length >= 2 && args[0].equals("daemon") && args[1].equals("stop")) {
+                Output.println("Daemon stopped");
+                stop = true;
+                status = 0;
+            } else if (args.length >= 2 && args[0].equals("daemon") && args[1].equals("status")) {
+                Output.println("Daemon serving " + root + ", " + served + " commands so far");
+                for (ObjectCache.Stats s : ObjectManager.cacheStats()) Output.println("  " + s);
+                if (monitor != null) Output.println("  " + monitor.describe());
+                status = 0;
+            } else {
+                status = runner.run(args);
+            }
+        } catch (RuntimeException e) {
+            Output.error("Error! Please Try Again.: " + e.getMessage());
+            status = 1;
+        } finally {
+            Output.set(console);
+        }
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+        return !stop;
+    }
+
+    // "smk daemon" and "smk daemon start" start a daemon; every other command can be forwarded.
+    private static boolean startsDaemon(final String[] args) {
+        return args[0].equals("daemon") && (args.length == 1 || args[1].equals("start"));
+    }
+
+    private static boolean sameDirectory(final String dir, final Path root) {
+        try {
+            return Paths.get(dir).toRealPath().equals(root);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // Closed either way
+        }
+    }
+
+    private static void removeSocket() {
+        try {
+            Files.deleteIfExists(SOCKET);
+        } catch (IOException e) {
+            // The next daemon replaces it
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > MAX_STRING) throw new IOException("bad string length " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // One of the two output streams of a reply, written as frames of the shared connection.
+    private static final class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte kind;
+
+        FrameStream(final DataOutputStream out, final byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) return;
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
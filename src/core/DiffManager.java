@@ -1,16 +1,19 @@
 package core;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
 
 /**
  * Produces human-readable diffs between working tree, index, and commit trees.
@@ -22,8 +25,17 @@ public class DiffManager {
      * This is the default behavior for "smk diff".
      */
     public static void showDiff() {
-        IndexMap index = IndexManager.readIndex();
-        showDiffBetweenIndexAndWorkingDir(index);
+        showDiff(LineDiff.Options.fromConfig());
+    }
+
+    public static void showDiff(LineDiff.Options options) {
+        IndexFile index = IndexManager.openIndex();
+        List<String> staged = new ArrayList<>(index.size());
+        index.forEachEntry((i, path) -> staged.add(path));
+        showDiffBetweenIndexAndWorkingDir(staged, path -> {
+            int i = index.find(path);
+            return i < 0 ? null : index.hash(i);
+        }, index, options);
     }
 
     /**
@@ -31,8 +43,12 @@ public class DiffManager {
      * This is called for "smk diff HEAD".
      */
     public static void showDiffHead() {
+        showDiffHead(LineDiff.Options.fromConfig());
+    }
+
+    public static void showDiffHead(LineDiff.Options options) {
         IndexMap headTree = CommitManager.readHeadTree();
-        showDiffBetweenIndexAndWorkingDir(headTree);
+        showDiffBetweenIndexAndWorkingDir(headTree.keySet(), headTree::get, IndexManager.openIndex(), options);
     }
 
     /**
@@ -40,27 +56,36 @@ public class DiffManager {
      * This is called for "smk diff <commitA> <commitB>".
      */
     public static void showDiffCommits(String commitA, String commitB) {
-        IndexMap treeA = CommitManager.readTreeFromCommit(commitA);
-        IndexMap treeB = CommitManager.readTreeFromCommit(commitB);
+        showDiffCommits(commitA, commitB, LineDiff.Options.fromConfig());
+    }
+
+    public static void showDiffCommits(String commitA, String commitB, LineDiff.Options options) {
+        String treeA = CommitManager.readTreeHash(commitA);
+        String treeB = CommitManager.readTreeHash(commitB);
         
         if (treeA.isEmpty() && !commitA.isEmpty()) {
-            System.out.println("fatal: unknown commit " + commitA);
+            Output.println("fatal: unknown commit " + commitA);
             return;
         }
         if (treeB.isEmpty() && !commitB.isEmpty()) {
-            System.out.println("fatal: unknown commit " + commitB);
+            Output.println("fatal: unknown commit " + commitB);
             return;
         }
         
-        showDiffBetweenTrees(treeA, treeB, commitA, commitB);
+        showDiffBetweenTrees(treeA, treeB, commitA, commitB, options);
     }
 
     /**
-     * Shows diff between an IndexMap (staging area or commit tree) and working directory.
+     * Shows diff between a source (staging area or commit tree) and working directory.
+     * A tracked file is only read when neither the index stat data nor its content hash shows
+     * it to match the source, so an unchanged tree costs little more than one stat per file.
+     * @param sourcePaths The paths in the source.
+     * @param sourceHash The blob hash of a path in the source, or null.
+     * @param stats The index, whose stat data identifies unchanged working files.
      */
-    private static void showDiffBetweenIndexAndWorkingDir(IndexMap sourceTree) {
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(sourceTree.keySet());
+    private static void showDiffBetweenIndexAndWorkingDir(Collection<String> sourcePaths, Function<String, String> sourceHash,
+                                                          IndexFile stats, LineDiff.Options options) {
+        Set<String> allFiles = new TreeSet<>(sourcePaths);
         
         // Also check for files in working directory that might not be in source
         try {
@@ -74,10 +99,7 @@ public class DiffManager {
                 }
                 String relPath = filePath.toString().replace('\\', '/');
                 
-                // Skip .smk files and hidden files
-                if (relPath.startsWith(".smk") || relPath.contains("/.smk/") || relPath.contains("\\.smk\\")) {
-                    continue;
-                }
+                // Skip hidden files; the walk already leaves out .smk and ignored paths
                 Path relPathObj = Paths.get(relPath);
                 if (relPathObj.getFileName() != null && relPathObj.getFileName().toString().startsWith(".")) {
                     continue;
@@ -88,167 +110,171 @@ public class DiffManager {
             // Ignore errors listing files
         }
 
-        boolean hasChanges = false;
-        for (String path : allFiles) {
-            String sourceHash = sourceTree.get(path);
-            
-            // Get working directory content
-            String workingContent = null;
-            boolean workingExists = Files.exists(Paths.get(path));
-            if (workingExists) {
-                try {
-                    workingContent = Utils.readFileStr(path);
-                } catch (IOException e) {
-                    // File exists but can't be read - treat as different
-                    workingContent = "";
-                }
-            }
-            
-            // Get source content
-            String sourceContent = null;
-            if (sourceHash != null && !sourceHash.isEmpty()) {
-                ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(sourceHash);
-                if ("blob".equals(obj.type())) {
-                    sourceContent = obj.content();
-                }
-            }
-            
-            // Compare content directly
-            boolean contentDifferent = false;
-            if (sourceContent == null && workingContent != null) {
-                contentDifferent = true;
-            } else if (sourceContent != null && workingContent == null) {
-                contentDifferent = true;
-            } else if (sourceContent != null && workingContent != null && !sourceContent.equals(workingContent)) {
-                contentDifferent = true;
-            }
-            
-            // Show diff if different
-            if (sourceHash == null && workingContent != null) {
-                // New file in working directory
-                hasChanges = true;
-                showFileDiff(path, null, workingContent, "new file");
-            } else if (sourceHash != null && !workingExists) {
-                // File deleted in working directory
-                hasChanges = true;
-                showFileDiff(path, sourceContent, null, "deleted file");
-            } else if (contentDifferent) {
-                // File modified
-                hasChanges = true;
-                showFileDiff(path, sourceContent, workingContent, "modified");
-            }
-        }
+        // Files are diffed in parallel and shown in path order
+        boolean hasChanges = ParallelDiff.render(new ArrayList<>(allFiles),
+                path -> workingFileDiff(path, sourceHash.apply(path), stats, options)) > 0;
         
         if (!hasChanges) {
-            System.out.println("No unstaged changes.");
+            Output.println("No unstaged changes.");
         }
     }
 
     /**
-     * Shows diff between two commit trees.
+     * Formats the diff of one path between the source and the working directory.
+     * @return The diff, or null if the working file matches the source.
      */
-    private static void showDiffBetweenTrees(IndexMap treeA, IndexMap treeB, String commitA, String commitB) {
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(treeA.keySet());
-        allFiles.addAll(treeB.keySet());
+    private static String workingFileDiff(String path, String sourceHash, IndexFile stats, LineDiff.Options options) {
+        if (sourceHash != null && sourceHash.equals(workingHash(stats, path))) {
+            return null;
+        }
         
-        boolean hasChanges = false;
-        for (String path : allFiles) {
-            String hashA = treeA.get(path);
-            String hashB = treeB.get(path);
-            
-            if (hashA == null && hashB != null) {
-                // File added in B
-                hasChanges = true;
-                ObjectManager.ObjectContent objB = ObjectManager.readObjectContent(hashB);
-                if ("blob".equals(objB.type())) {
-                    showFileDiff(path, null, objB.content(), "new file");
-                }
-            } else if (hashA != null && hashB == null) {
-                // File deleted in B
-                hasChanges = true;
-                ObjectManager.ObjectContent objA = ObjectManager.readObjectContent(hashA);
-                if ("blob".equals(objA.type())) {
-                    showFileDiff(path, objA.content(), null, "deleted file");
-                }
-            } else if (hashA != null && hashB != null && !hashA.equals(hashB)) {
-                // File modified
-                hasChanges = true;
-                ObjectManager.ObjectContent objA = ObjectManager.readObjectContent(hashA);
-                ObjectManager.ObjectContent objB = ObjectManager.readObjectContent(hashB);
-                if ("blob".equals(objA.type()) && "blob".equals(objB.type())) {
-                    showFileDiff(path, objA.content(), objB.content(), "modified");
-                }
+        // Get working directory content
+        byte[] workingContent = null;
+        boolean workingExists = Files.exists(Paths.get(path));
+        if (workingExists) {
+            try {
+                workingContent = Files.readAllBytes(Paths.get(path));
+            } catch (IOException e) {
+                // File exists but can't be read - treat as different
+                workingContent = new byte[0];
             }
         }
         
-        if (!hasChanges) {
-            System.out.println("No differences between " + commitA + " and " + commitB + ".");
+        // Get source content
+        byte[] sourceContent = null;
+        if (sourceHash != null && !sourceHash.isEmpty()) {
+            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(sourceHash);
+            if ("blob".equals(obj.type())) {
+                sourceContent = obj.bytes();
+            }
+        }
+        
+        // Compare raw bytes directly, nothing is decoded unless a diff is printed
+        boolean contentDifferent = false;
+        if (sourceContent == null && workingContent != null) {
+            contentDifferent = true;
+        } else if (sourceContent != null && workingContent == null) {
+            contentDifferent = true;
+        } else if (sourceContent != null && workingContent != null && !Arrays.equals(sourceContent, workingContent)) {
+            contentDifferent = true;
+        }
+        
+        if (sourceHash == null && workingContent != null) {
+            // New file in working directory
+            return formatFileDiff(path, null, workingContent, "new file", options);
+        } else if (sourceHash != null && !workingExists) {
+            // File deleted in working directory
+            return formatFileDiff(path, sourceContent, null, "deleted file", options);
+        } else if (contentDifferent) {
+            // File modified
+            return formatFileDiff(path, sourceContent, workingContent, "modified", options);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the blob hash of a working file: the staged hash when the stat data shows the file
+     * unchanged, otherwise the hash of its content (nothing is stored).
+     * @return The hash, or null if the file is missing or cannot be read.
+     */
+    private static String workingHash(IndexFile stats, String path) {
+        String known = FsMonitor.knownHash(path);
+        if (known != null) return known;
+        try {
+            long token = FsMonitor.token();
+            FileStat st = FileStat.of(path);
+            if (st == null) return null;
+            int i = stats.find(path);
+            String clean = i < 0 ? null : stats.cleanHash(i, st);
+            String hash = clean != null ? clean : ObjectManager.hashFile(Paths.get(path));
+            FsMonitor.remember(path, hash, token);
+            return hash;
+        } catch (IOException e) {
+            return null;
         }
     }
 
     /**
-     * Shows the diff for a single file.
+     * Shows diff between two commit trees.
+     * Subtrees with the same hash on both sides are skipped without being read.
      */
-    private static void showFileDiff(String path, String oldContent, String newContent, String changeType) {
-        System.out.println("diff -- " + path + " (" + changeType + ")");
+    private static void showDiffBetweenTrees(String treeA, String treeB, String commitA, String commitB,
+                                             LineDiff.Options options) {
+        List<String[]> changes = new ArrayList<>();
+        TreeManager.walk(new String[] {treeA, treeB}, TreeManager::sameSubtree, (path, hashes) -> {
+            if (!Objects.equals(hashes[0], hashes[1])) changes.add(new String[] {path, hashes[0], hashes[1]});
+        });
+        changes.sort(Comparator.comparing(c -> c[0]));
+        ParallelDiff.render(changes, c -> treeFileDiff(c[0], c[1], c[2], options));
         
-        if (oldContent == null) oldContent = "";
-        if (newContent == null) newContent = "";
+        if (changes.isEmpty()) {
+            Output.println("No differences between " + commitA + " and " + commitB + ".");
+        }
+    }
+
+    /**
+     * Formats the diff of one path between two trees.
+     * @return The diff, or null if either side is not a blob.
+     */
+    private static String treeFileDiff(String path, String hashA, String hashB, LineDiff.Options options) {
+        if (hashA == null) {
+            // File added in B
+            ObjectManager.ObjectContent objB = ObjectManager.readObjectContent(hashB);
+            return "blob".equals(objB.type()) ? formatFileDiff(path, null, objB.bytes(), "new file", options) : null;
+        } else if (hashB == null) {
+            // File deleted in B
+            ObjectManager.ObjectContent objA = ObjectManager.readObjectContent(hashA);
+            return "blob".equals(objA.type()) ? formatFileDiff(path, objA.bytes(), null, "deleted file", options) : null;
+        }
+        // File modified
+        ObjectManager.ObjectContent objA = ObjectManager.readObjectContent(hashA);
+        ObjectManager.ObjectContent objB = ObjectManager.readObjectContent(hashB);
+        if ("blob".equals(objA.type()) && "blob".equals(objB.type())) {
+            return formatFileDiff(path, objA.bytes(), objB.bytes(), "modified", options);
+        }
+        return null;
+    }
+
+    /**
+     * Formats the diff of a single file: a header line, then unified hunks.
+     * Binary content (anything with a NUL byte near the start) is reported but not decoded.
+     * @param oldBytes The old content, or null for a new file.
+     * @param newBytes The new content, or null for a deleted file.
+     * @return The text to print, ending in a blank line unless both sides are empty.
+     */
+    public static String formatFileDiff(String path, byte[] oldBytes, byte[] newBytes, String changeType,
+                                        LineDiff.Options options) {
+        StringBuilder out = new StringBuilder();
+        out.append("diff -- ").append(path).append(" (").append(changeType).append(")\n");
+
+        if (LineDiff.isBinary(oldBytes) || LineDiff.isBinary(newBytes)) {
+            out.append("Binary files differ\n\n");
+            return out.toString();
+        }
+
+        String oldContent = oldBytes == null ? "" : new String(oldBytes, StandardCharsets.UTF_8);
+        String newContent = newBytes == null ? "" : new String(newBytes, StandardCharsets.UTF_8);
         
         // If both are empty, skip
         if (oldContent.isEmpty() && newContent.isEmpty()) {
-            return;
-        }
-        
-        // Line-by-line comparison
-        List<String> oldLines = new ArrayList<>();
-        List<String> newLines = new ArrayList<>();
-        
-        try (BufferedReader oldReader = new BufferedReader(new StringReader(oldContent));
-             BufferedReader newReader = new BufferedReader(new StringReader(newContent))) {
-            
-            String line;
-            while ((line = oldReader.readLine()) != null) {
-                oldLines.add(line);
-            }
-            while ((line = newReader.readLine()) != null) {
-                newLines.add(line);
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading content for diff: " + e.getMessage());
-            return;
+            return out.toString();
         }
         
-        int maxLines = Math.max(oldLines.size(), newLines.size());
-        boolean hasOutput = false;
-        
-        for (int i = 0; i < maxLines; i++) {
-            String oldLine = i < oldLines.size() ? oldLines.get(i) : null;
-            String newLine = i < newLines.size() ? newLines.get(i) : null;
-            
-            if (oldLine == null && newLine != null) {
-                // Line added
-                System.out.println("+" + newLine);
-                hasOutput = true;
-            } else if (oldLine != null && newLine == null) {
-                // Line removed
-                System.out.println("-" + oldLine);
-                hasOutput = true;
-            } else if (oldLine != null && newLine != null && !oldLine.equals(newLine)) {
-                // Line modified
-                System.out.println("-" + oldLine);
-                System.out.println("+" + newLine);
-                hasOutput = true;
-            }
+        List<String> oldLines = LineDiff.lines(oldContent);
+        List<String> newLines = LineDiff.lines(newContent);
+        List<LineDiff.Hunk> hunks = LineDiff.unified(oldLines, newLines, options);
+        for (LineDiff.Hunk hunk : hunks) {
+            out.append(hunk.header()).append("\n");
+            for (String line : hunk.lines()) out.append(line).append("\n");
         }
         
-        if (!hasOutput && !oldContent.equals(newContent)) {
+        if (hunks.isEmpty() && !oldContent.equals(newContent)) {
             // Content changed but line-by-line comparison didn't catch it
             // This can happen with different line endings or whitespace
-            System.out.println("(binary or content differences)");
+            out.append("(binary or content differences)\n");
         }
         
-        System.out.println(); // Blank line between files
+        out.append("\n"); // Blank line between files
+        return out.toString();
     }
 }
@@ -0,0 +1,66 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Output as batches of events, for the GUI. The GUI runs each command in a child process and
+ * passes on the lines it reads; events are handed to the listener when a batch is full or on
+ * {@link #flush()}, so a command printing thousands of lines causes a few UI updates rather
+ * than one per line. Errors are not told apart: the child's standard error is merged into its output.
+ */
+public class EventReporter implements Reporter {
+
+    /**
+     * One piece of output: a line or, from {@link #print}, preformatted text that may span several lines.
+     */
+    public record Event(String text, boolean line) {}
+
+    private static final int BATCH = 256;
+
+    private final Consumer<List<Event>> listener;
+    private List<Event> pending = new ArrayList<>();
+
+    /**
+     * @param listener Receives each batch of events, on the thread that filled or flushed it.
+     */
+    public EventReporter(final Consumer<List<Event>> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void println(final String line) {
+        add(new Event(line, true));
+    }
+
+    @Override
+    public void print(final String text) {
+        add(new Event(text, false));
+    }
+
+    @Override
+    public void error(final String line) {
+        println(line);
+    }
+
+    @Override
+    public void flush() {
+        List<Event> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        listener.accept(batch);
+    }
+
+    private void add(final Event event) {
+        boolean full;
+        synchronized (this) {
+            pending.add(event);
+            full = pending.size() >= BATCH;
+        }
+        if (full) flush();
+    }
+}
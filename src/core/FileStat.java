@@ -0,0 +1,72 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filesystem metadata cached in the index so unchanged files can be recognised without re-hashing.
+ * @param size The file size in bytes.
+ * @param mtimeNs The last modification time in nanoseconds since the epoch.
+ * @param inode The inode number, or 0 when the filesystem does not expose one.
+ * @param mode The unix mode bits, or 0 when the filesystem does not expose them.
+ */
+public record FileStat(long size, long mtimeNs, long inode, int mode) {
+
+    // Flipped off the first time the platform rejects the "unix" attribute view (e.g. Windows).
+    private static volatile boolean unixView = true;
+
+    /**
+     * Reads the stat data of a file.
+     * @param path The path to the file.
+     * @return The stat data, or null if the file does not exist or is not a regular file.
+     */
+    public static FileStat of(final Path path) throws IOException {
+        try {
+            if (unixView) {
+                try {
+                    Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino,mode,isRegularFile");
+                    if (!Boolean.TRUE.equals(attrs.get("isRegularFile"))) return null;
+                    return new FileStat(
+                            (Long) attrs.get("size"),
+                            toNanos((FileTime) attrs.get("lastModifiedTime")),
+                            (Long) attrs.get("ino"),
+                            (Integer) attrs.get("mode"));
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    unixView = false;
+                }
+            }
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) return null;
+            return new FileStat(attrs.size(), toNanos(attrs.lastModifiedTime()), 0, 0);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // Overload: allow passing the path as a String.
+    public static FileStat of(final String path) throws IOException {
+        return of(Paths.get(path));
+    }
+
+    /**
+     * Checks whether the file still looks the same as when this stat was taken.
+     * Inode and mode are only compared when both sides know them.
+     */
+    public boolean matches(final FileStat other) {
+        if (other == null) return false;
+        if (size != other.size || mtimeNs != other.mtimeNs) return false;
+        if (inode != 0 && other.inode != 0 && inode != other.inode) return false;
+        return mode == 0 || other.mode == 0 || mode == other.mode;
+    }
+
+    static long toNanos(final FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,407 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Watches the working tree for changes while a daemon runs ({@code core.fsmonitor = true}), so
+ * status, add and diff need not walk and stat every file.
+ *
+ * Every directory the walk would enter is registered with a {@link WatchService}. From the
+ * events the monitor keeps the list of working files, and the hash of each working file some
+ * command computed since its last change; a change event drops the hash. Every change moves a
+ * token forward, and a hash computed from a stat taken before the last change of its path is
+ * never kept. The paths changed after a given token can be listed ({@link #changedSince}), which
+ * lets status check only those against an index it has checked before.
+ *
+ * Events arrive asynchronously, so before each command the daemon calls {@link #sync()}, which
+ * creates a cookie file in .smk and waits for its event: everything that happened before is then
+ * known. If events were lost (an overflow) or the cookie never shows up, everything the monitor
+ * knows is dropped and the tree is walked again.
+ */
+public final class FsMonitor {
+
+    public static final String CONFIG_KEY = "core.fsmonitor";
+
+    private static final String COOKIE_PREFIX = "fsmonitor-cookie-";
+    private static final long SYNC_TIMEOUT_MS = 2000;
+
+    private static volatile FsMonitor current;
+
+    private final Path root = Paths.get(".");
+    private final Path smkDir = Paths.get(".smk");
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    private WatchKey cookieKey;
+
+    // Working files as the walk names them ("./a/b"), and their hashes while unchanged
+    private final NavigableSet<String> files = new TreeSet<>();
+    private final Map<String, String> hashes = new HashMap<>();
+    // The token of the last change of each path, back to the token changes are kept since
+    private final Map<String, Long> changedAt = new HashMap<>();
+
+    private IgnoreRules ignore;
+    private long token;
+    private long scannedAt;
+    private long keptSince = Long.MAX_VALUE;
+    private long cookiesSeen;
+    private long cookiesMade;
+    private boolean rescan;
+    private long rescans;
+
+    private FsMonitor() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts watching the working tree in the current directory.
+     * @return The monitor, or null if it could not be started; commands then walk the tree.
+     */
+    public static FsMonitor start() {
+        try {
+            FsMonitor m = new FsMonitor();
+            synchronized (m) {
+                m.scan();
+            }
+            Thread t = new Thread(m::run, "smk-fsmonitor");
+            t.setDaemon(true);
+            t.start();
+            current = m;
+            return m;
+        } catch (IOException e) {
+            Output.error("Error starting file system monitor: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The running monitor, or null.
+     */
+    public static FsMonitor current() {
+        return current;
+    }
+
+    public static void stop() {
+        FsMonitor m = current;
+        current = null;
+        if (m != null) {
+            try {
+                m.watcher.close();
+            } catch (IOException e) {
+                // Its thread ends either way
+            }
+        }
+    }
+
+    /**
+     * Waits until every change made before this call has been seen, walking the tree again if
+     * events were lost.
+     */
+    public void sync() {
+        long cookie;
+        synchronized (this) {
+            cookie = ++cookiesMade;
+        }
+        Path file = smkDir.resolve(COOKIE_PREFIX + cookie);
+        boolean seen = false;
+        try {
+            Files.createFile(file);
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+            synchronized (this) {
+                long left;
+                while (cookiesSeen < cookie && (left = deadline - System.currentTimeMillis()) > 0) wait(left);
+                seen = cookiesSeen >= cookie;
+            }
+        } catch (IOException e) {
+            Output.error("Error syncing file system monitor: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // A stale cookie is harmless
+            }
+        }
+
+        synchronized (this) {
+            if (!seen || rescan) {
+                try {
+                    scan();
+                } catch (IOException e) {
+                    Output.error("Error rescanning working tree: " + e.getMessage());
+                    stop();
+                    return;
+                }
+            }
+            // Commands run one at a time: whatever they remember from now on is newer than these
+            long floor = Math.min(token, keptSince);
+            changedAt.values().removeIf(t -> t <= floor);
+        }
+    }
+
+    /**
+     * Keeps the changes made after a token, so that {@link #changedSince} can list them; changes
+     * since an earlier token are no longer kept.
+     */
+    public static void keepChangesSince(final long token) {
+        FsMonitor m = current;
+        if (m == null) return;
+        synchronized (m) {
+            m.keptSince = token;
+        }
+    }
+
+    /**
+     * Lists the paths that changed after a token, named as {@link #listFiles} names them.
+     * @return The paths (deleted ones included), or null if no monitor runs, the changes since that
+     *         token were not kept, or the tree was walked again since: then anything may have changed.
+     */
+    public static Set<String> changedSince(final long token) {
+        FsMonitor m = current;
+        if (m == null) return null;
+        synchronized (m) {
+            if (token < m.keptSince || token < m.scannedAt) return null;
+            Set<String> changed = new HashSet<>();
+            for (Map.Entry<String, Long> e : m.changedAt.entrySet()) {
+                if (e.getValue() > token) changed.add(e.getKey());
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Tells whether a path names a working file the monitor lists.
+     */
+    public static boolean isWorkingFile(final String path) {
+        FsMonitor m = current;
+        if (m == null) return false;
+        synchronized (m) {
+            return m.files.contains(m.key(path));
+        }
+    }
+
+    /**
+     * Tells whether a later change of a working file will be listed by {@link #changedSince} under
+     * this very path: the monitor watches it and knows its current hash, so it is no link either.
+     */
+    public static boolean reportsChanges(final String path) {
+        FsMonitor m = current;
+        if (m == null) return false;
+        synchronized (m) {
+            String key = m.key(path);
+            return key.equals(path) && m.hashes.containsKey(key);
+        }
+    }
+
+    /**
+     * Lists the working files under a directory, if the monitor covers it.
+     * @return The files, named and filtered as {@link Utils#listFilesRecursive} does; null if
+     *         no monitor runs or it does not watch that directory.
+     */
+    public static List<String> listFiles(final String dir) {
+        FsMonitor m = current;
+        if (m == null || !Paths.get(dir).normalize().equals(m.root.normalize())) return null;
+        synchronized (m) {
+            return new ArrayList<>(m.files);
+        }
+    }
+
+    /**
+     * The token to pass to {@link #remember}: take it before the file's stat.
+     */
+    public static long token() {
+        FsMonitor m = current;
+        if (m == null) return 0;
+        synchronized (m) {
+            return m.token;
+        }
+    }
+
+    /**
+     * Returns the hash of a working file if it was computed since its last change.
+     */
+    public static String knownHash(final String path) {
+        FsMonitor m = current;
+        if (m == null) return null;
+        synchronized (m) {
+            return m.hashes.get(m.key(path));
+        }
+    }
+
+    /**
+     * Records the hash of a working file, unless it changed after {@code token}.
+     */
+    public static void remember(final String path, final String hash, final long token) {
+        FsMonitor m = current;
+        if (m == null || hash == null) return;
+        // The target of a link may change without any event in the tree
+        if (Files.isSymbolicLink(Paths.get(path))) return;
+        synchronized (m) {
+            String key = m.key(path);
+            if (!m.files.contains(key) || m.changedAt.getOrDefault(key, Long.MIN_VALUE) > token) return;
+            m.hashes.put(key, hash);
+        }
+    }
+
+    /**
+     * One line about the monitor's state, for "smk daemon status".
+     */
+    public synchronized String describe() {
+        return "fsmonitor: " + files.size() + " files in " + dirs.size() + " directories, " + hashes.size()
+                + " known hashes, token " + token + ", " + rescans + " full scans";
+    }
+
+    // The event loop, on its own thread.
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                synchronized (this) {
+                    handle(key);
+                    notifyAll();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private void handle(final WatchKey key) {
+        if (key == cookieKey) {
+            for (WatchEvent<?> ev : key.pollEvents()) {
+                if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan = true;
+                    continue;
+                }
+                String name = ev.context().toString();
+                if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE && name.startsWith(COOKIE_PREFIX)) {
+                    try {
+                        cookiesSeen = Math.max(cookiesSeen, Long.parseLong(name.substring(COOKIE_PREFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (!key.reset()) rescan = true;
+            return;
+        }
+
+        Path dir = dirs.get(key);
+        if (dir == null) {
+            // Cancelled by a rescan, which has seen whatever it reports
+            key.pollEvents();
+            return;
+        }
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan = true;
+                continue;
+            }
+            changed(dir.resolve((Path) ev.context()), ev.kind());
+        }
+        // The directory is gone; its parent reports the deletion
+        if (!key.reset()) dirs.remove(key);
+    }
+
+    private void changed(final Path path, final WatchEvent.Kind<?> kind) {
+        token++;
+        String key = path.toString();
+        if (path.getParent() != null && path.getParent().equals(root) && path.getFileName().toString().equals(IgnoreRules.FILE)) {
+            // Different rules, different files: start over
+            rescan = true;
+        }
+
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            forget(key);
+            // If it was a directory, everything under it is gone too
+            String prefix = key + path.getFileSystem().getSeparator();
+            for (String f : new ArrayList<>(files.subSet(prefix, true, prefix + Character.MAX_VALUE, false))) forget(f);
+            return;
+        }
+
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (kind != StandardWatchEventKinds.ENTRY_CREATE || path.getFileName().toString().equals(".smk")) return;
+            if (ignore.isIgnored(key, true)) return;
+            try {
+                // Registered before it is listed, so files created meanwhile are not missed
+                Utils.walkFiles(path, stateOf(path), this::register, f -> {
+                    files.add(f);
+                    invalidate(f);
+                });
+            } catch (IOException e) {
+                rescan = true;
+            }
+            return;
+        }
+
+        invalidate(key);
+        boolean regular = Files.isRegularFile(path);
+        if (regular && !ignore.isIgnored(key, false)) files.add(key);
+        else files.remove(key);
+    }
+
+    private void forget(final String key) {
+        files.remove(key);
+        invalidate(key);
+    }
+
+    private void invalidate(final String key) {
+        hashes.remove(key);
+        changedAt.put(key, token);
+    }
+
+    // The ignore state inside a directory that is not ignored.
+    private IgnoreRules.State stateOf(final Path dir) {
+        IgnoreRules.State s = ignore.root();
+        for (Path name : dir.normalize()) {
+            if (s == null) break;
+            if (!name.toString().isEmpty()) s = s.enter(name.toString());
+        }
+        return s != null ? s : ignore.root();
+    }
+
+    // Drops everything and walks the whole tree again.
+    private void scan() throws IOException {
+        for (WatchKey k : dirs.keySet()) k.cancel();
+        dirs.clear();
+        files.clear();
+        hashes.clear();
+        changedAt.clear();
+        rescan = false;
+        rescans++;
+        scannedAt = ++token;
+
+        ignore = IgnoreRules.load(root);
+        if (cookieKey == null) cookieKey = smkDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        Utils.walkFiles(root, ignore.root(), this::register, files::add);
+    }
+
+    private void register(final Path dir) throws IOException {
+        dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+    }
+
+    // Paths are named like the walk names them, whichever way the caller wrote them.
+    private String key(final String path) {
+        // Paths from the walk and the index already are: skip the parse
+        if (path.startsWith("./") && path.indexOf("/.", 1) < 0 && path.indexOf("//") < 0) return path;
+        return root.resolve(Paths.get(path).normalize()).toString();
+    }
+}
@@ -0,0 +1,228 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Garbage collection ("smk gc"): marks every object reachable from the refs, a detached HEAD
+ * and the index, repacks the live ones into a single pack, deletes what is left over, and
+ * rewrites the commit-graph.
+ *
+ * Unreachable loose objects are only pruned once they are older than the grace period
+ * ({@code gc.pruneExpireDays}, default 14), so objects another command has just written but not
+ * yet referenced survive. Unreachable objects in a pack younger than that are written back
+ * loose, with the pack's timestamp, instead of being dropped along with the pack.
+ */
+public class GcManager {
+
+    private static final String SMK_DIR = ".smk";
+    private static final String OBJECTS_DIR = SMK_DIR + "/objects";
+    private static final String PRUNE_KEY = "gc.pruneExpireDays";
+    private static final int DEFAULT_PRUNE_DAYS = 14;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Runs a full garbage collection and reports what each phase did.
+     * @param pruneNow Prune unreachable objects regardless of their age.
+     */
+    public static void gc(final boolean pruneNow) {
+        Path objectsDir = Paths.get(OBJECTS_DIR);
+        if (!Files.isDirectory(objectsDir)) {
+            Output.println("fatal: not an smk repository");
+            return;
+        }
+        long graceMs = pruneNow ? 0 : Math.max(0, ConfigManager.getInt(PRUNE_KEY, DEFAULT_PRUNE_DAYS)) * DAY_MS;
+        long cutoff = System.currentTimeMillis() - graceMs;
+
+        try {
+            long sizeBefore = directorySize(objectsDir);
+
+            long t0 = System.nanoTime();
+            Set<String> live = markReachable(objectsDir);
+            Output.println("Marking: " + live.size() + " reachable objects (" + millisSince(t0) + " ms)");
+
+            t0 = System.nanoTime();
+            List<PackFile> oldPacks = PackManager.packs(objectsDir);
+            List<String> loose = ObjectManager.listObjectIds(objectsDir);
+            List<Path> written = PackManager.writePacks(objectsDir, live);
+            Set<String> writtenNames = new HashSet<>();
+            for (Path idx : written) writtenNames.add(idx.getFileName().toString());
+            Output.println("Repacking: " + live.size() + " objects into " + written.size()
+                    + (written.size() == 1 ? " pack" : " packs") + " (" + millisSince(t0) + " ms)");
+
+            t0 = System.nanoTime();
+            int kept = 0;
+            int droppedPacks = 0;
+            for (PackFile pack : oldPacks) {
+                // Identical content gives an identical pack name; the new pack then replaced it
+                if (writtenNames.contains(pack.idxPath().getFileName().toString())) continue;
+                kept += keepRecentUnreachable(objectsDir, pack, live, cutoff);
+                Files.deleteIfExists(pack.idxPath());
+                Files.deleteIfExists(pack.packPath());
+                droppedPacks++;
+            }
+            PackManager.reload(objectsDir);
+
+            int packed = 0;
+            int pruned = 0;
+            for (String id : loose) {
+                if (live.contains(id)) {
+                    if (PackManager.contains(objectsDir, id)) {
+                        ObjectManager.deleteLooseObject(objectsDir, id);
+                        packed++;
+                    }
+                } else if (olderThan(ObjectManager.objectFile(objectsDir, id), cutoff)) {
+                    ObjectManager.deleteLooseObject(objectsDir, id);
+                    pruned++;
+                }
+            }
+            int temps = removeStaleTempFiles(objectsDir, cutoff);
+            Output.println("Pruning: removed " + packed + " packed and " + pruned + " unreachable loose objects, "
+                    + droppedPacks + " old packs, " + temps + " temp files (" + millisSince(t0) + " ms)");
+            if (kept > 0) {
+                Output.println("Kept " + kept + " recent unreachable objects as loose objects.");
+            }
+
+            t0 = System.nanoTime();
+            int commits = CommitGraphManager.write(objectsDir);
+            Output.println("Commit-graph: " + commits + " commits (" + millisSince(t0) + " ms)");
+
+            long sizeAfter = directorySize(objectsDir);
+            // Packing a handful of small objects can cost more than it saves
+            String sizes = " bytes (" + sizeBefore + " -> " + sizeAfter + ")";
+            if (sizeAfter <= sizeBefore) Output.println("Reclaimed " + (sizeBefore - sizeAfter) + sizes);
+            else Output.println("Object store grew by " + (sizeAfter - sizeBefore) + sizes);
+        } catch (IOException e) {
+            Output.error("Error collecting garbage: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Collects every object reachable from the refs, a detached HEAD and the index.
+     * Referenced objects that do not exist are left out.
+     */
+    public static Set<String> markReachable(final Path objectsDir) throws IOException {
+        Deque<String> pending = new ArrayDeque<>(roots());
+        Set<String> seen = new HashSet<>();
+        Set<String> live = new LinkedHashSet<>();
+
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (id.isEmpty() || !seen.add(id)) continue;
+
+            ObjectManager.ObjectHeader header = ObjectManager.readObjectHeader(objectsDir, id);
+            if (header == null) continue;
+            live.add(id);
+            if ("blob".equals(header.type())) continue;
+
+            String content = ObjectManager.readObject(objectsDir, id).content();
+            try (BufferedReader reader = new BufferedReader(new StringReader(content))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if ("commit".equals(header.type())) {
+                        // References only appear in the header, before the message
+                        if (line.isEmpty()) break;
+                        if (line.startsWith("tree ")) pending.push(line.substring("tree ".length()));
+                        else if (line.startsWith("parent ")) pending.push(line.substring("parent ".length()));
+                    } else if ("tree".equals(header.type())) {
+                        int tab = line.lastIndexOf('\t');
+                        if (tab != -1) pending.push(line.substring(tab + 1));
+                    }
+                }
+            }
+        }
+        return live;
+    }
+
+    private static Set<String> roots() throws IOException {
+        Set<String> roots = new LinkedHashSet<>();
+
+        Path refsDir = Paths.get(SMK_DIR, "refs");
+        if (Files.isDirectory(refsDir)) {
+            List<Path> refs;
+            try (Stream<Path> s = Files.walk(refsDir)) {
+                refs = s.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path ref : refs) {
+                roots.add(Utils.readFileStr(ref.toString()).trim());
+            }
+        }
+
+        Path head = Paths.get(SMK_DIR, "HEAD");
+        if (Files.exists(head)) {
+            String s = Utils.readFileStr(head.toString()).trim();
+            if (!s.startsWith("ref: ")) roots.add(s);
+        }
+
+        // Staged but uncommitted blobs
+        roots.addAll(IndexManager.readIndex().values());
+        return roots;
+    }
+
+    // Writes the unreachable objects of a recent pack back as loose objects, dated like the pack.
+    private static int keepRecentUnreachable(final Path objectsDir, final PackFile pack, final Set<String> live,
+                                             final long cutoff) throws IOException {
+        if (olderThan(pack.packPath(), cutoff)) return 0;
+        FileTime packTime = Files.getLastModifiedTime(pack.packPath());
+
+        int kept = 0;
+        for (int i = 0; i < pack.size(); i++) {
+            String id = pack.id(i);
+            if (live.contains(id)) continue;
+            ObjectManager.ObjectContent obj = pack.read(i);
+            ObjectManager.storeLooseObject(objectsDir, obj.type(), obj.bytes());
+            Files.setLastModifiedTime(ObjectManager.objectFile(objectsDir, id), packTime);
+            kept++;
+        }
+        return kept;
+    }
+
+    // Temp files are left behind by interrupted writes; once old enough nobody is still writing them.
+    private static int removeStaleTempFiles(final Path objectsDir, final long cutoff) throws IOException {
+        List<Path> candidates = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(objectsDir, 2)) {
+            s.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith("tmp_obj_") || name.startsWith("tmp_pack_");
+            }).forEach(candidates::add);
+        }
+        int removed = 0;
+        for (Path p : candidates) {
+            if (olderThan(p, cutoff) && Files.deleteIfExists(p)) removed++;
+        }
+        return removed;
+    }
+
+    private static boolean olderThan(final Path p, final long cutoff) throws IOException {
+        return Files.exists(p) && Files.getLastModifiedTime(p).toMillis() <= cutoff;
+    }
+
+    private static long directorySize(final Path dir) throws IOException {
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path p : entries) {
+                total += Files.isDirectory(p) ? directorySize(p) : Files.size(p);
+            }
+        }
+        return total;
+    }
+
+    private static long millisSince(final long startNs) {
+        return (System.nanoTime() - startNs) / 1_000_000;
+    }
+}
@@ -0,0 +1,315 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The patterns of a .smkignore file, with gitignore syntax: {@code *}, {@code ?} and
+ * {@code [...]} globs, {@code **} for any number of directories, {@code !} to re-include what an
+ * earlier pattern excluded, a trailing {@code /} for directories only, and a leading or inner
+ * {@code /} to anchor a pattern at the top of the working tree. The last pattern matching a path
+ * decides. Files inside an ignored directory cannot be re-included, as in git.
+ *
+ * The patterns are compiled once into an automaton over path components: every position in
+ * every pattern is a node, and a {@link State} is the set of nodes reached after the components
+ * of one directory. A walk keeps one state per directory level and steps it by name, so each
+ * name costs one hash lookup for literal components plus a test per glob still in play,
+ * whatever the depth. States are shared between directories that reach the same nodes.
+ */
+public final class IgnoreRules {
+
+    public static final String FILE = ".smkignore";
+
+    // One path component of a pattern: a literal name, a glob, or "**"
+    private record Segment(String literal, Pattern glob, boolean anyDepth) {
+        boolean matches(final String name) {
+            return literal != null ? literal.equals(name) : glob.matcher(name).matches();
+        }
+    }
+
+    private record Rule(List<Segment> segments, boolean negated, boolean dirOnly) {}
+
+    private final List<Rule> rules;
+
+    // Nodes: rule r has segments().size() + 1 of them, numbered consecutively from first[r]
+    private final int[] ruleOf;
+    private final Segment[] segmentAt;
+    private final int[][] closure;
+    private final Map<BitSet, State> states = new HashMap<>();
+    private final State root;
+
+    private IgnoreRules(final List<Rule> rules) {
+        this.rules = rules;
+        int nodes = 0;
+        for (Rule r : rules) nodes += r.segments().size() + 1;
+        ruleOf = new int[nodes];
+        segmentAt = new Segment[nodes];
+        int[] first = new int[rules.size()];
+        int id = 0;
+        for (int r = 0; r < rules.size(); r++) {
+            first[r] = id;
+            for (Segment s : rules.get(r).segments()) {
+                ruleOf[id] = r;
+                segmentAt[id++] = s;
+            }
+            // The end node: the whole pattern has matched
+            ruleOf[id++] = r;
+        }
+
+        // "**" can match no component at all, so reaching it reaches the node after it too
+        closure = new int[nodes][];
+        for (int n = 0; n < nodes; n++) {
+            int end = n;
+            while (segmentAt[end] != null && segmentAt[end].anyDepth()) end++;
+            closure[n] = new int[end - n + 1];
+            for (int k = 0; k <= end - n; k++) closure[n][k] = n + k;
+        }
+
+        BitSet start = new BitSet(nodes);
+        for (int f : first) add(start, f);
+        root = intern(start);
+    }
+
+    /**
+     * Reads the .smkignore at the top of a working tree.
+     * @return The rules; none if there is no such file or it cannot be read.
+     */
+    public static IgnoreRules load(final Path workTree) {
+        try {
+            return parse(Files.readAllLines(workTree.resolve(FILE)));
+        } catch (NoSuchFileException e) {
+            return parse(List.of());
+        } catch (IOException e) {
+            Output.error("Error reading " + FILE + ": " + e.getMessage());
+            return parse(List.of());
+        }
+    }
+
+    public static IgnoreRules parse(final List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (String line : lines) {
+            Rule r = parseLine(line);
+            if (r != null) rules.add(r);
+        }
+        return new IgnoreRules(rules);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * The state at the top of the working tree.
+     */
+    public State root() {
+        return root;
+    }
+
+    /**
+     * Tells whether a path is ignored, itself or through one of its directories.
+     * @param path A path relative to the top of the working tree; a leading "./" is allowed.
+     */
+    public boolean isIgnored(final String path, final boolean isDir) {
+        String p = path.replace('\\', '/');
+        while (p.startsWith("./")) p = p.substring(2);
+        String[] names = p.split("/");
+        State s = root;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].isEmpty() || names[i].equals(".")) continue;
+            if (i == names.length - 1 && !isDir) return s.ignores(names[i]);
+            s = s.enter(names[i]);
+            if (s == null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The patterns in play in one directory.
+     */
+    public final class State {
+        // Nodes whose next component is a literal, by that literal
+        private final Map<String, int[]> literal = new HashMap<>();
+        // Nodes whose next component is a glob or "**", tested against every name
+        private final int[] wild;
+
+        private State(final BitSet nodes) {
+            Map<String, List<Integer>> byName = new HashMap<>();
+            List<Integer> others = new ArrayList<>();
+            for (int n = nodes.nextSetBit(0); n >= 0; n = nodes.nextSetBit(n + 1)) {
+                Segment s = segmentAt[n];
+                if (s == null) continue;
+                if (s.literal() != null) byName.computeIfAbsent(s.literal(), k -> new ArrayList<>()).add(n);
+                else others.add(n);
+            }
+            for (Map.Entry<String, List<Integer>> kv : byName.entrySet()) {
+                literal.put(kv.getKey(), kv.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+            wild = others.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * Tells whether a file in this directory is ignored.
+         */
+        public boolean ignores(final String fileName) {
+            return ignored(step(fileName), false);
+        }
+
+        /**
+         * Steps into a subdirectory.
+         * @return The state inside it, or null if it is ignored and must not be walked.
+         */
+        public State enter(final String dirName) {
+            BitSet next = step(dirName);
+            return ignored(next, true) ? null : intern(next);
+        }
+
+        private BitSet step(final String name) {
+            BitSet next = new BitSet(ruleOf.length);
+            int[] hits = literal.get(name);
+            if (hits != null) {
+                for (int n : hits) add(next, n + 1);
+            }
+            for (int n : wild) {
+                Segment s = segmentAt[n];
+                // "**" takes the name and stays; the node after it was reached through the closure
+                if (s.anyDepth()) add(next, n);
+                else if (s.matches(name)) add(next, n + 1);
+            }
+            return next;
+        }
+    }
+
+    // The last rule whose end node was reached decides.
+    private boolean ignored(final BitSet nodes, final boolean isDir) {
+        for (int n = nodes.previousSetBit(nodes.length() - 1); n >= 0; n = nodes.previousSetBit(n - 1)) {
+            if (segmentAt[n] != null) continue;
+            Rule r = rules.get(ruleOf[n]);
+            if (r.dirOnly() && !isDir) continue;
+            return !r.negated();
+        }
+        return false;
+    }
+
+    private void add(final BitSet nodes, final int node) {
+        for (int n : closure[node]) nodes.set(n);
+    }
+
+    private synchronized State intern(final BitSet nodes) {
+        return states.computeIfAbsent(nodes, State::new);
+    }
+
+    private static Rule parseLine(final String raw) {
+        String line = raw.endsWith("\r") ? raw.substring(0, raw.length() - 1) : raw;
+        if (line.startsWith("#")) return null;
+        // Trailing spaces do not count unless escaped
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) end--;
+        line = line.substring(0, end);
+
+        boolean negated = line.startsWith("!");
+        if (negated) line = line.substring(1);
+        boolean dirOnly = line.endsWith("/");
+        if (dirOnly) line = line.substring(0, line.length() - 1);
+        // A slash anywhere but at the end anchors the pattern at the top; otherwise it matches at any depth
+        boolean anchored = line.contains("/");
+        if (line.startsWith("/")) line = line.substring(1);
+        if (line.isEmpty()) return null;
+
+        List<Segment> segments = new ArrayList<>();
+        if (!anchored) segments.add(new Segment(null, null, true));
+        for (String part : line.split("/")) {
+            if (part.isEmpty()) continue;
+            boolean anyDepth = part.equals("**");
+            if (anyDepth && !segments.isEmpty() && segments.get(segments.size() - 1).anyDepth()) continue;
+            segments.add(anyDepth ? new Segment(null, null, true) : segment(part));
+        }
+        if (segments.isEmpty()) return null;
+        Segment last = segments.get(segments.size() - 1);
+        if (last.anyDepth()) {
+            // "dir/**" matches what is inside dir, not dir itself
+            segments.add(segments.size() - 1, segment("*"));
+        }
+        return new Rule(List.copyOf(segments), negated, dirOnly);
+    }
+
+    private static Segment segment(final String part) {
+        boolean glob = false;
+        for (int i = 0; i < part.length(); i++) {
+            if ("*?[\\".indexOf(part.charAt(i)) >= 0) glob = true;
+        }
+        return glob ? new Segment(null, Pattern.compile(globToRegex(part)), false) : new Segment(part, null, false);
+    }
+
+    // A component never contains "/", so "*" may match any run of characters.
+    private static String globToRegex(final String glob) {
+        StringBuilder re = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                re.append(".*");
+                while (i + 1 < glob.length() && glob.charAt(i + 1) == '*') i++;
+            } else if (c == '?') {
+                re.append('.');
+            } else if (c == '\\') {
+                if (i + 1 < glob.length()) appendLiteral(re, glob.charAt(++i));
+            } else if (c == '[') {
+                int close = classEnd(glob, i);
+                if (close < 0) {
+                    appendLiteral(re, c);
+                } else {
+                    appendClass(re, glob.substring(i + 1, close));
+                    i = close;
+                }
+            } else {
+                appendLiteral(re, c);
+            }
+        }
+        return re.toString();
+    }
+
+    // The index of the "]" closing the class opened at open, or -1 if it is never closed.
+    private static int classEnd(final String glob, final int open) {
+        int j = open + 1;
+        if (j < glob.length() && (glob.charAt(j) == '!' || glob.charAt(j) == '^')) j++;
+        // A "]" right after the opening is part of the class
+        if (j < glob.length() && glob.charAt(j) == ']') j++;
+        while (j < glob.length() && glob.charAt(j) != ']') {
+            if (glob.charAt(j) == '\\') j++;
+            j++;
+        }
+        return j < glob.length() ? j : -1;
+    }
+
+    private static void appendClass(final StringBuilder re, final String body) {
+        re.append('[');
+        int i = 0;
+        if (!body.isEmpty() && (body.charAt(0) == '!' || body.charAt(0) == '^')) {
+            re.append('^');
+            i = 1;
+        }
+        for (; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\' && i + 1 < body.length()) c = body.charAt(++i);
+            else if (c == '-') {
+                re.append('-');
+                continue;
+            }
+            if ("[]\\^&-".indexOf(c) >= 0) re.append('\\');
+            re.append(c);
+        }
+        re.append(']');
+    }
+
+    private static void appendLiteral(final StringBuilder re, final char c) {
+        if ("\\.[]{}()<>*+-=!?^$|".indexOf(c) >= 0) re.append('\\');
+        re.append(c);
+    }
+}
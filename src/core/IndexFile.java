@@ -0,0 +1,406 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only, memory-mapped view of the binary .smk/index file.
+ * Lookups binary-search the path-sorted entries directly in the mapped buffer,
+ * so answering a single query does not decode the rest of the index; a pass over
+ * every entry only decodes the paths, and the hash or stat data it asks for.
+ * The checksum is verified once, when the file is opened.
+ *
+ * Layout (integers are big-endian):
+ * <pre>
+ *   header   "SMKI" | version:int | entries:int | hashBytes:int | namesSize:int
+ *   entries  entries x { hash:hashBytes | size:long | mtimeNs:long | inode:long | mode:int | flags:int | nameOffset:int }
+ *   names    per entry: shared:varint | suffixLen:varint | suffix (UTF-8)
+ *            (shared = bytes reused from the previous path, always 0 every RESTART_INTERVAL entries)
+ *   trailer  crc32c:int over everything before it
+ * </pre>
+ */
+public final class IndexFile {
+
+    private static final byte[] MAGIC = {'S', 'M', 'K', 'I'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int FIXED_ENTRY_SIZE = 8 + 8 + 8 + 4 + 4 + 4;
+    private static final int RESTART_INTERVAL = 16;
+    private static final int FLAG_HAS_STAT = 1;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Receives entries in path order while the index is being decoded.
+     */
+    public interface Visitor {
+        void visit(String path, String hash, FileStat stat);
+    }
+
+    /**
+     * Receives the position and path of each entry in path order; hash and stat data are read on demand.
+     */
+    public interface EntryVisitor {
+        void visit(int i, String path);
+    }
+
+    private final ByteBuffer buf;
+    private final int count;
+    private final int hashBytes;
+    private final int entrySize;
+    private final int namesStart;
+    private final long timestampNs;
+
+    private IndexFile(ByteBuffer buf, int count, int hashBytes, int namesStart, long timestampNs) {
+        this.buf = buf;
+        this.count = count;
+        this.hashBytes = hashBytes;
+        this.entrySize = hashBytes + FIXED_ENTRY_SIZE;
+        this.namesStart = namesStart;
+        this.timestampNs = timestampNs;
+    }
+
+    /**
+     * Checks whether the file content starts with the binary index signature.
+     */
+    public static boolean isBinary(final byte[] head) {
+        return head.length >= MAGIC.length && Arrays.equals(head, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Maps an index file and validates its header and checksum.
+     * @param path The index file.
+     * @return The index view, or null if the file is missing, empty or not a binary index.
+     * @throws IOException If the file is a binary index but is truncated or corrupt.
+     */
+    public static IndexFile open(final Path path) throws IOException {
+        // Taken before the content: if the file is replaced in between, the older time only
+        // makes more entries look racy
+        long timestampNs;
+        try {
+            timestampNs = FileStat.toNanos(Files.getLastModifiedTime(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer buf = Utils.mapReadOnly(path);
+        if (buf == null || buf.limit() < MAGIC.length) return null;
+
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(0, magic);
+        if (!isBinary(magic)) return null;
+        return parse(buf, timestampNs);
+    }
+
+    /**
+     * An index with no entries.
+     */
+    public static IndexFile empty() {
+        return new IndexFile(ByteBuffer.allocate(HEADER_SIZE), 0, 0, HEADER_SIZE, 0);
+    }
+
+    /**
+     * Wraps an index map that is not on disk in binary form (a missing or text-format index) in the same view.
+     * @throws IOException If the entries do not all carry hex hashes of the same length.
+     */
+    public static IndexFile of(final IndexMap idx) throws IOException {
+        return parse(ByteBuffer.wrap(encode(idx)), idx.timestampNs());
+    }
+
+    private static IndexFile parse(final ByteBuffer buf, final long timestampNs) throws IOException {
+        int len = buf.limit();
+        if (len < HEADER_SIZE + 4) throw new IOException("index file truncated");
+        int version = buf.getInt(4);
+        if (version != VERSION) throw new IOException("unsupported index version " + version);
+        int count = buf.getInt(8);
+        int hashBytes = buf.getInt(12);
+        int namesSize = buf.getInt(16);
+        int namesStart = HEADER_SIZE + count * (hashBytes + FIXED_ENTRY_SIZE);
+        if (count < 0 || hashBytes < 0 || namesSize < 0 || namesStart + namesSize + 4 != len) {
+            throw new IOException("index file truncated");
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate().position(0).limit(len - 4));
+        if ((int) crc.getValue() != buf.getInt(len - 4)) {
+            throw new IOException("index file corrupt: checksum mismatch");
+        }
+
+        return new IndexFile(buf, count, hashBytes, namesStart, timestampNs);
+    }
+
+    /**
+     * The number of entries in the index.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Binary-searches the index for a path.
+     * @return The entry position, or {@code -(insertionPoint) - 1} if the path is not present.
+     */
+    public int find(final String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+
+        // Restart entries hold their full path, so the search over them compares in place.
+        int lo = 0;
+        int hi = (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL - 1;
+        int block = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareRestart(mid * RESTART_INTERVAL, key);
+            if (cmp == 0) return mid * RESTART_INTERVAL;
+            if (cmp < 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) return -1;
+
+        // Walk the prefix-compressed block that may contain the key.
+        int first = block * RESTART_INTERVAL;
+        int end = Math.min(count, first + RESTART_INTERVAL);
+        byte[] name = new byte[64];
+        int nameLen = 0;
+        int pos = nameOffset(first);
+        for (int i = first; i < end; i++) {
+            int[] cursor = {pos};
+            int shared = readVarint(cursor);
+            int suffix = readVarint(cursor);
+            if (shared + suffix > name.length) name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffix));
+            buf.get(cursor[0], name, shared, suffix);
+            nameLen = shared + suffix;
+            pos = cursor[0] + suffix;
+
+            int cmp = Arrays.compareUnsigned(name, 0, nameLen, key, 0, key.length);
+            if (cmp == 0) return i;
+            if (cmp > 0) return -i - 1;
+        }
+        return -end - 1;
+    }
+
+    /**
+     * Returns the path of the entry at a position.
+     */
+    public String path(final int i) {
+        int first = i - i % RESTART_INTERVAL;
+        byte[] name = new byte[64];
+        int nameLen = 0;
+        int[] cursor = {nameOffset(first)};
+        for (int k = first; k <= i; k++) {
+            int shared = readVarint(cursor);
+            int suffix = readVarint(cursor);
+            if (shared + suffix > name.length) name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffix));
+            buf.get(cursor[0], name, shared, suffix);
+            nameLen = shared + suffix;
+            cursor[0] += suffix;
+        }
+        return new String(name, 0, nameLen, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the blob hash of the entry at a position.
+     */
+    public String hash(final int i) {
+        byte[] raw = new byte[hashBytes];
+        buf.get(entryOffset(i), raw);
+        return Utils.bytesToHex(raw);
+    }
+
+    /**
+     * Checks whether the entry at a position holds the given hash, without decoding its own.
+     */
+    public boolean hashEquals(final int i, final String hash) {
+        if (hash == null || hash.length() != hashBytes * 2) return false;
+        int off = entryOffset(i);
+        // Hashes are always spelled in lower case, as Utils.bytesToHex writes them
+        for (int k = 0; k < hashBytes; k++) {
+            int b = buf.get(off + k) & 0xFF;
+            if (hash.charAt(2 * k) != HEX_DIGITS[b >>> 4] || hash.charAt(2 * k + 1) != HEX_DIGITS[b & 0x0F]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached stat data of the entry at a position, or null if none was recorded.
+     */
+    public FileStat stat(final int i) {
+        int off = entryOffset(i) + hashBytes;
+        if ((buf.getInt(off + 28) & FLAG_HAS_STAT) == 0) return null;
+        return new FileStat(buf.getLong(off), buf.getLong(off + 8), buf.getLong(off + 16), buf.getInt(off + 24));
+    }
+
+    /**
+     * Returns the staged hash of the entry at a position if the working file still matches its
+     * stat data, as {@link IndexMap#cleanHash} does for a decoded index.
+     * @return The hash, or null if the file may have changed.
+     */
+    public String cleanHash(final int i, final FileStat current) {
+        FileStat recorded = stat(i);
+        if (recorded == null || !recorded.matches(current)) return null;
+        if (timestampNs == 0 || recorded.mtimeNs() >= timestampNs) return null;
+        return hash(i);
+    }
+
+    /**
+     * The modification time of the index file this view was read from (0 if not read from disk).
+     */
+    public long timestampNs() {
+        return timestampNs;
+    }
+
+    /**
+     * Decodes every entry in path order, sharing the prefix decoding between neighbours.
+     */
+    public void forEach(final Visitor visitor) {
+        forEachEntry((i, path) -> visitor.visit(path, hash(i), stat(i)));
+    }
+
+    /**
+     * Walks the entries in path order, decoding only their paths.
+     */
+    public void forEachEntry(final EntryVisitor visitor) {
+        byte[] name = new byte[64];
+        int[] cursor = {namesStart};
+        for (int i = 0; i < count; i++) {
+            int shared = readVarint(cursor);
+            int suffix = readVarint(cursor);
+            if (shared + suffix > name.length) name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffix));
+            buf.get(cursor[0], name, shared, suffix);
+            cursor[0] += suffix;
+            visitor.visit(i, new String(name, 0, shared + suffix, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Serializes an index map into the binary layout described above.
+     * @throws IOException If the entries do not all carry hex hashes of the same length.
+     */
+    public static byte[] encode(final IndexMap idx) throws IOException {
+        String[] paths = idx.keySet().toArray(new String[0]);
+        byte[][] names = new byte[paths.length][];
+        Integer[] order = new Integer[paths.length];
+        for (int i = 0; i < order.length; i++) {
+            names[i] = paths[i].getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        // Byte order of the UTF-8 names is what find() searches by
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names[a], names[b]));
+
+        int hashBytes = idx.isEmpty() ? 0 : idx.values().iterator().next().length() / 2;
+
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(order.length * (hashBytes + FIXED_ENTRY_SIZE));
+        DataOutputStream entries = new DataOutputStream(entryBytes);
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream(order.length * 16);
+
+        byte[] prev = new byte[0];
+        for (int k = 0; k < order.length; k++) {
+            String path = paths[order[k]];
+            byte[] name = names[order[k]];
+            String hash = idx.get(path);
+            byte[] raw = Utils.hexToBytes(hash);
+            if (raw == null || raw.length != hashBytes) {
+                throw new IOException("cannot encode index entry " + path + " with hash '" + hash + "'");
+            }
+
+            FileStat st = idx.getStat(path);
+            entries.write(raw);
+            entries.writeLong(st == null ? 0 : st.size());
+            entries.writeLong(st == null ? 0 : st.mtimeNs());
+            entries.writeLong(st == null ? 0 : st.inode());
+            entries.writeInt(st == null ? 0 : st.mode());
+            entries.writeInt(st == null ? 0 : FLAG_HAS_STAT);
+            entries.writeInt(nameBytes.size());
+
+            int shared = 0;
+            if (k % RESTART_INTERVAL != 0) {
+                int max = Math.min(prev.length, name.length);
+                while (shared < max && prev[shared] == name[shared]) shared++;
+            }
+            writeVarint(nameBytes, shared);
+            writeVarint(nameBytes, name.length - shared);
+            nameBytes.write(name, shared, name.length - shared);
+            prev = name;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + entryBytes.size() + nameBytes.size() + 4);
+        out.put(MAGIC).putInt(VERSION).putInt(order.length).putInt(hashBytes).putInt(nameBytes.size());
+        out.put(entryBytes.toByteArray());
+        out.put(nameBytes.toByteArray());
+        CRC32C crc = new CRC32C();
+        crc.update(out.array(), 0, out.position());
+        out.putInt((int) crc.getValue());
+        return out.array();
+    }
+
+    /**
+     * Writes an index map to disk, replacing the previous file atomically.
+     */
+    public static void write(final Path path, final IndexMap idx) throws IOException {
+        byte[] data = encode(idx);
+        Path tmp = path.resolveSibling(path.getFileName() + ".lock");
+        Files.write(tmp, data);
+        Utils.replaceFile(tmp, path);
+    }
+
+    /**
+     * Copies the entries of this index into a map, including their stat data.
+     */
+    void loadInto(final IndexMap idx) {
+        idx.setTimestampNs(timestampNs);
+        forEach((path, hash, stat) -> {
+            idx.put(path, hash);
+            idx.putStat(path, stat);
+        });
+    }
+
+    private int entryOffset(int i) {
+        return HEADER_SIZE + i * entrySize;
+    }
+
+    private int nameOffset(int i) {
+        return namesStart + buf.getInt(entryOffset(i) + hashBytes + 32);
+    }
+
+    // Compares the full path stored at a restart entry with the key, without copying it.
+    private int compareRestart(int i, byte[] key) {
+        int[] cursor = {nameOffset(i)};
+        readVarint(cursor);
+        int len = readVarint(cursor);
+        int n = Math.min(len, key.length);
+        for (int k = 0; k < n; k++) {
+            int a = buf.get(cursor[0] + k) & 0xFF;
+            int b = key[k] & 0xFF;
+            if (a != b) return a - b;
+        }
+        return len - key.length;
+    }
+
+    private int readVarint(int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buf.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
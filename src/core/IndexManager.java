@@ -3,35 +3,162 @@ package core;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
+import java.util.function.Function;
 
 /**
  * Serializes and deserializes the staging index between memory and .smk/index.
+ * The index is stored in the binary layout of {@link IndexFile}; the older text
+ * format ({@code path\thash[\tsize\tmtimeNs\tinode\tmode]} per line) is still
+ * read and is replaced by the binary one on the next write.
+ *
+ * Commands that only compare against the index (status, add . when nothing changed, diff, and
+ * {@link #lookup}) use the mapped {@link IndexFile} from {@link #openIndex}, whose checksum is
+ * verified once per version of the file. Only commands that rewrite the index decode it into an
+ * {@link IndexMap} with {@link #readIndex}; the daemon keeps that map while the file is unchanged.
  */
 public class IndexManager {
 
     private static final String INDEX_FILE = ".smk/index";
 
+    // The last index read, with the stat of the file it came from; only kept once keepLoaded() is called
+    private record Loaded(FileStat stat, IndexMap idx) {}
+
+    // The last binary index opened, with the stat of its file
+    private record Opened(FileStat stat, IndexFile file) {}
+
+    private static volatile boolean keepLoaded;
+    private static Loaded loaded;
+    private static Opened opened;
+
+    /**
+     * Keeps the index in memory between reads, for a process that runs many commands (the daemon).
+     * Every read still stats .smk/index and loads it again if it was replaced; the index is always
+     * written to a new file, so a changed file never keeps its inode.
+     */
+    public static void keepLoaded() {
+        keepLoaded = true;
+    }
+
     public static void writeIndex(final IndexMap idx) {
-        StringBuilder out = new StringBuilder();
-        for (Map.Entry<String, String> kv : idx.entrySet()) {
-            out.append(kv.getKey()).append("\t").append(kv.getValue()).append("\n");
+        try {
+            writeIndexOrThrow(idx);
+        } catch (IOException e) {
+            Output.error("Error writing index file: " + e.getMessage());
         }
+    }
+
+    /**
+     * Writes the index, for callers that must not go on if it could not be written.
+     */
+    public static void writeIndexOrThrow(final IndexMap idx) throws IOException {
+        IndexFile.write(Paths.get(INDEX_FILE), idx);
+    }
 
+    public static IndexMap readIndex() {
+        if (!keepLoaded) return loadIndex();
+
+        FileStat stat;
         try {
-            // Assumed core.Utils.writeFile exists
-            Utils.writeFile(Paths.get(INDEX_FILE), out.toString());
+            stat = FileStat.of(Paths.get(INDEX_FILE));
         } catch (IOException e) {
-            System.err.println("Error writing index file: " + e.getMessage());
+            stat = null;
+        }
+        if (stat == null) return loadIndex();
+        synchronized (IndexManager.class) {
+            // Callers modify the map they get: hand out copies
+            if (loaded == null || !loaded.stat().equals(stat)) loaded = new Loaded(stat, loadIndex());
+            return copyOf(loaded.idx());
         }
     }
 
-    public static IndexMap readIndex() {
+    private static IndexMap copyOf(final IndexMap src) {
         IndexMap idx = new IndexMap();
+        idx.putAll(src);
+        idx.copyStatsFrom(src);
+        idx.setTimestampNs(src.timestampNs());
+        return idx;
+    }
+
+    private static IndexMap loadIndex() {
+        IndexMap idx = new IndexMap();
+        try {
+            IndexFile file = openBinary();
+            if (file != null) {
+                file.loadInto(idx);
+                return idx;
+            }
+        } catch (IOException e) {
+            Output.error("Error reading index file: " + e.getMessage());
+            return idx;
+        }
+
+        return readTextIndex(idx);
+    }
+
+    /**
+     * Returns the index as a read-only view of the mapped file, without decoding its entries.
+     * A missing or text-format index is read into memory and wrapped instead.
+     * @return The index; empty if it could not be read.
+     */
+    public static IndexFile openIndex() {
+        try {
+            IndexFile file = openBinary();
+            return file != null ? file : IndexFile.of(readTextIndex(new IndexMap()));
+        } catch (IOException e) {
+            Output.error("Error reading index file: " + e.getMessage());
+            return IndexFile.empty();
+        }
+    }
+
+    // Maps the binary index, reusing the last view while the file is unchanged (as keepLoaded does),
+    // so its checksum is verified once per version. Null if the index is missing or in the text format.
+    private static IndexFile openBinary() throws IOException {
+        Path p = Paths.get(INDEX_FILE);
+        FileStat stat = FileStat.of(p);
+        if (stat == null) return null;
+        synchronized (IndexManager.class) {
+            if (opened != null && opened.stat().equals(stat)) return opened.file();
+        }
+        IndexFile file = IndexFile.open(p);
+        if (file != null) {
+            synchronized (IndexManager.class) {
+                opened = new Opened(stat, file);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Looks up the staged hash of a single path by binary search, without loading the whole index.
+     * @param path The tracked path.
+     * @return The staged hash, or null if the path is not in the index.
+     */
+    public static String lookup(final String path) {
+        IndexFile file = openIndex();
+        int i = file.find(path);
+        return i < 0 ? null : file.hash(i);
+    }
+
+    // Reads an index written in the pre-binary text format, or missing. Such an index may only
+    // hold the changes staged since the last commit, which used to leave it empty: it is laid
+    // over HEAD, so that it is the complete next snapshot again, and written back as binary.
+    private static IndexMap readTextIndex(final IndexMap idx) {
+        IndexMap staged = parseTextIndex(idx);
+        IndexMap snapshot = CommitManager.readHeadTree();
+        if (snapshot.isEmpty()) return staged;
+        snapshot.putAll(staged);
+        snapshot.copyStatsFrom(staged);
+        snapshot.setTimestampNs(staged.timestampNs());
+        writeIndex(snapshot);
+        return snapshot;
+    }
+
+    private static IndexMap parseTextIndex(final IndexMap idx) {
         String s;
         try {
-            // Assumed core.Utils.readFileStr exists
             s = Utils.readFileStr(INDEX_FILE);
         } catch (IOException e) {
             // Treat file not found/error as an empty index
@@ -40,23 +167,72 @@ public class IndexManager {
 
         if (s.isEmpty()) return idx;
 
+        try {
+            Path p = Paths.get(INDEX_FILE);
+            idx.setTimestampNs(FileStat.toNanos(Files.getLastModifiedTime(p)));
+        } catch (IOException e) {
+            // Without a timestamp every cached stat is treated as racy
+        }
+
         try (BufferedReader reader = new BufferedReader(new StringReader(s))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 if (line.isEmpty()) continue;
-                int tab = line.indexOf('\t');
+                String[] fields = line.split("\t");
 
-                if (tab == -1) continue;
+                if (fields.length < 2) continue;
 
-                String path = line.substring(0, tab);
-                String hash = line.substring(tab + 1);
+                String path = fields[0];
+                String hash = fields[1];
 
                 idx.put(path, hash);
+
+                if (fields.length >= 6) {
+                    try {
+                        idx.putStat(path, new FileStat(
+                                Long.parseLong(fields[2]),
+                                Long.parseLong(fields[3]),
+                                Long.parseLong(fields[4]),
+                                Integer.parseInt(fields[5])));
+                    } catch (NumberFormatException e) {
+                        // Malformed stat data only costs a re-hash
+                    }
+                }
             }
         } catch (IOException e) {
-            System.err.println("Error processing index file content: " + e.getMessage());
+            Output.error("Error processing index file content: " + e.getMessage());
         }
 
         return idx;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the blob hash of a working file, reusing the staged hash when the index
+     * stat data shows the file is unchanged and hashing (and storing) it otherwise. A hash the
+     * file system monitor knows to be current is returned without a stat.
+     * @param idx The index to consult.
+     * @param path The path of the working file.
+     * @return The blob hash of the working file.
+     */
+    public static String hashWorkingFile(final IndexMap idx, final String path) throws IOException {
+        return hashWorkingFile(path, st -> idx.cleanHash(path, st));
+    }
+
+    /**
+     * Returns the blob hash of a working file as {@link #hashWorkingFile(IndexMap, String)} does,
+     * for the entry at position {@code i} of a mapped index.
+     */
+    public static String hashWorkingFile(final IndexFile index, final int i, final String path) throws IOException {
+        return hashWorkingFile(path, st -> index.cleanHash(i, st));
+    }
+
+    private static String hashWorkingFile(final String path, final Function<FileStat, String> clean) throws IOException {
+        String known = FsMonitor.knownHash(path);
+        if (known != null) return known;
+        long token = FsMonitor.token();
+        String cached = clean.apply(FileStat.of(path));
+        if (cached == null) cached = ObjectManager.hashBlobFromFile(path);
+        FsMonitor.remember(path, cached, token);
+        return cached;
+    }
+}
@@ -1,8 +1,94 @@
 package core;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Convenience map for file path to blob hash mappings used by index/trees.
+ * When loaded from the index it also carries the stat data recorded for each entry;
+ * when read from a tree, the hashes of the tree objects of each directory.
  */
-public class IndexMap extends HashMap<String, String> {}
+public class IndexMap extends HashMap<String, String> {
+
+    // Stat data is remembered together with the hash it was taken for, so any later
+    // put/remove of the path through the plain map API invalidates it automatically.
+    private record CachedStat(String hash, FileStat stat) {}
+
+    private final Map<String, CachedStat> stats = new HashMap<>();
+    private final Map<String, String> treeHashes = new HashMap<>();
+    private long timestampNs;
+
+    /**
+     * Records the stat data of the working file whose content hashes to the current entry.
+     */
+    public void putStat(final String path, final FileStat stat) {
+        String hash = get(path);
+        if (hash == null || stat == null) {
+            stats.remove(path);
+            return;
+        }
+        stats.put(path, new CachedStat(hash, stat));
+    }
+
+    /**
+     * Returns the stat data recorded for the current entry, or null if there is none.
+     */
+    public FileStat getStat(final String path) {
+        CachedStat cached = stats.get(path);
+        if (cached == null || !cached.hash().equals(get(path))) return null;
+        return cached.stat();
+    }
+
+    /**
+     * Copies the stat data of every entry in {@code other} whose hash matches this map.
+     */
+    public void copyStatsFrom(final IndexMap other) {
+        for (Map.Entry<String, CachedStat> kv : other.stats.entrySet()) {
+            if (kv.getValue().hash().equals(get(kv.getKey()))) {
+                stats.put(kv.getKey(), kv.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the staged hash for a path if the working file is known to be unchanged,
+     * i.e. its stat data matches and the entry is not racily clean.
+     * @param path The tracked path.
+     * @param current The current stat data of the working file.
+     * @return The staged hash, or null if the file has to be re-hashed.
+     */
+    public String cleanHash(final String path, final FileStat current) {
+        FileStat recorded = getStat(path);
+        if (recorded == null || !recorded.matches(current)) return null;
+        // A file modified in the same timestamp tick the index was written in may have
+        // changed after its stat was taken without moving mtime: never trust those.
+        if (timestampNs == 0 || recorded.mtimeNs() >= timestampNs) return null;
+        return get(path);
+    }
+
+    /**
+     * Records the tree object a directory was read from.
+     * @param dir The directory with a trailing "/", or "" for the root.
+     */
+    public void putTreeHash(final String dir, final String hash) {
+        treeHashes.put(dir, hash);
+    }
+
+    /**
+     * Returns the tree object a directory was read from, or null if this map was not read from a tree.
+     */
+    public String getTreeHash(final String dir) {
+        return treeHashes.get(dir);
+    }
+
+    /**
+     * The modification time of the index file this map was read from (0 if not read from disk).
+     */
+    public long timestampNs() {
+        return timestampNs;
+    }
+
+    void setTimestampNs(final long timestampNs) {
+        this.timestampNs = timestampNs;
+    }
+}
@@ -0,0 +1,433 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Line diffs between two texts: the edits turning one into the other, grouped into unified hunks.
+ *
+ * Two algorithms are available. MYERS finds a shortest edit script in O((N+M)*D) time, splitting
+ * the problem at the middle snake so it needs only linear space. HISTOGRAM anchors the diff on the
+ * least frequent lines the two sides have in common, as patience diff does with unique lines, and
+ * hands regions without such anchors to MYERS; it tends to keep moved blocks and braces readable.
+ * Lines are compared as interned integers, so each line is hashed once.
+ */
+public final class LineDiff {
+
+    public enum Algorithm { MYERS, HISTOGRAM }
+
+    /**
+     * Replaces old lines [oldStart, oldEnd) by new lines [newStart, newEnd). Either range may be empty.
+     */
+    public record Edit(int oldStart, int oldEnd, int newStart, int newEnd) {}
+
+    /**
+     * One unified hunk. Starts are 0-based; lines carry their " ", "-" or "+" prefix.
+     */
+    public record Hunk(int oldStart, int oldCount, int newStart, int newCount, List<String> lines) {
+        /**
+         * The "@@ -a,b +c,d @@" header, with 1-based line numbers as in unified diffs.
+         */
+        public String header() {
+            return "@@ -" + range(oldStart, oldCount) + " +" + range(newStart, newCount) + " @@";
+        }
+
+        private static String range(final int start, final int count) {
+            // An empty range names the line before it
+            return (count == 0 ? start : start + 1) + "," + count;
+        }
+    }
+
+    /**
+     * How to diff: the algorithm and the number of context lines around each change.
+     */
+    public record Options(Algorithm algorithm, int context) {
+        private static final String ALGORITHM_KEY = "diff.algorithm";
+        private static final String CONTEXT_KEY = "diff.context";
+        public static final int DEFAULT_CONTEXT = 3;
+
+        /**
+         * The options set by {@code diff.algorithm} (myers or histogram) and {@code diff.context}.
+         */
+        public static Options fromConfig() {
+            Algorithm algorithm = parseAlgorithm(ConfigManager.get(ALGORITHM_KEY, "myers"));
+            int context = Math.max(0, ConfigManager.getInt(CONTEXT_KEY, DEFAULT_CONTEXT));
+            return new Options(algorithm == null ? Algorithm.MYERS : algorithm, context);
+        }
+
+        public Options withAlgorithm(final Algorithm algorithm) {
+            return new Options(algorithm, context);
+        }
+
+        public Options withContext(final int context) {
+            return new Options(algorithm, Math.max(0, context));
+        }
+    }
+
+    // Histogram diff ignores lines occurring more often than this in the old region
+    private static final int MAX_CHAIN = 64;
+
+    private LineDiff() {}
+
+    /**
+     * Parses an algorithm name ("myers", "histogram"; "patience" is treated as histogram).
+     * @return The algorithm, or null if the name is unknown.
+     */
+    public static Algorithm parseAlgorithm(final String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "myers":
+            case "default":
+                return Algorithm.MYERS;
+            case "histogram":
+            case "patience":
+                return Algorithm.HISTOGRAM;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Tells whether content should be treated as binary rather than diffed or merged line by line.
+     * Same heuristic as git: a NUL byte in the first 8000 bytes means binary.
+     */
+    public static boolean isBinary(final byte[] data) {
+        if (data == null) return false;
+        int n = Math.min(data.length, 8000);
+        for (int i = 0; i < n; i++) {
+            if (data[i] == 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Splits text into lines the way {@link BufferedReader#readLine} does ("\n", "\r\n" or "\r").
+     */
+    public static List<String> lines(final String text) {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        } catch (IOException e) {
+            // A StringReader does not fail
+        }
+        return lines;
+    }
+
+    /**
+     * Computes the edits turning {@code a} into {@code b}, in order.
+     */
+    public static List<Edit> diff(final List<String> a, final List<String> b, final Algorithm algorithm) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] x = intern(a, ids);
+        int[] y = intern(b, ids);
+
+        // A line only one side has can never be matched: diff without those, then put them back
+        boolean[] inX = new boolean[ids.size()];
+        boolean[] inY = new boolean[ids.size()];
+        for (int id : x) inX[id] = true;
+        for (int id : y) inY[id] = true;
+        int[] xPos = keep(x, inY);
+        int[] yPos = keep(y, inX);
+        int[] xr = select(x, xPos);
+        int[] yr = select(y, yPos);
+
+        List<Edit> edits = new ArrayList<>();
+        if (algorithm == Algorithm.HISTOGRAM) {
+            histogram(xr, yr, ids.size(), edits);
+        } else {
+            myers(xr, 0, xr.length, yr, 0, yr.length, edits);
+        }
+        return expand(merge(edits), xPos, yPos, x.length, y.length);
+    }
+
+    /**
+     * Groups edits into hunks with the given number of context lines.
+     * Edits closer than twice the context share a hunk.
+     */
+    public static List<Hunk> hunks(final List<String> a, final List<String> b, final List<Edit> edits, final int context) {
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        while (i < edits.size()) {
+            int j = i;
+            while (j + 1 < edits.size() && edits.get(j + 1).oldStart() - edits.get(j).oldEnd() <= 2 * context) j++;
+
+            Edit first = edits.get(i);
+            Edit last = edits.get(j);
+            int oldStart = Math.max(0, first.oldStart() - context);
+            int newStart = first.newStart() - (first.oldStart() - oldStart);
+            int oldEnd = Math.min(a.size(), last.oldEnd() + context);
+            int newEnd = last.newEnd() + (oldEnd - last.oldEnd());
+
+            List<String> lines = new ArrayList<>();
+            int pos = oldStart;
+            for (int k = i; k <= j; k++) {
+                Edit e = edits.get(k);
+                for (; pos < e.oldStart(); pos++) lines.add(" " + a.get(pos));
+                for (int p = e.oldStart(); p < e.oldEnd(); p++) lines.add("-" + a.get(p));
+                for (int p = e.newStart(); p < e.newEnd(); p++) lines.add("+" + b.get(p));
+                pos = e.oldEnd();
+            }
+            for (; pos < oldEnd; pos++) lines.add(" " + a.get(pos));
+
+            hunks.add(new Hunk(oldStart, oldEnd - oldStart, newStart, newEnd - newStart, lines));
+            i = j + 1;
+        }
+        return hunks;
+    }
+
+    /**
+     * Diffs two texts and groups the result into hunks.
+     */
+    public static List<Hunk> unified(final List<String> a, final List<String> b, final Options options) {
+        return hunks(a, b, diff(a, b, options.algorithm()), options.context());
+    }
+
+    private static int[] intern(final List<String> lines, final Map<String, Integer> ids) {
+        int[] out = new int[lines.size()];
+        for (int i = 0; i < out.length; i++) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            out[i] = id;
+        }
+        return out;
+    }
+
+    // The positions of the lines the other side also has.
+    private static int[] keep(final int[] lines, final boolean[] other) {
+        int n = 0;
+        for (int id : lines) if (other[id]) n++;
+        int[] pos = new int[n];
+        n = 0;
+        for (int i = 0; i < lines.length; i++) if (other[lines[i]]) pos[n++] = i;
+        return pos;
+    }
+
+    private static int[] select(final int[] lines, final int[] pos) {
+        int[] out = new int[pos.length];
+        for (int i = 0; i < pos.length; i++) out[i] = lines[pos[i]];
+        return out;
+    }
+
+    // Maps edits between the filtered sequences back to the full ones: every gap between two matched lines is an edit.
+    private static List<Edit> expand(final List<Edit> edits, final int[] xPos, final int[] yPos, final int n, final int m) {
+        List<Edit> out = new ArrayList<>();
+        int a = 0, b = 0;
+        int i = 0, j = 0;
+        for (int k = 0; k <= edits.size(); k++) {
+            int stop = k < edits.size() ? edits.get(k).oldStart() : xPos.length;
+            for (; i < stop; i++, j++) {
+                if (a < xPos[i] || b < yPos[j]) out.add(new Edit(a, xPos[i], b, yPos[j]));
+                a = xPos[i] + 1;
+                b = yPos[j] + 1;
+            }
+            if (k < edits.size()) {
+                i = edits.get(k).oldEnd();
+                j = edits.get(k).newEnd();
+            }
+        }
+        if (a < n || b < m) out.add(new Edit(a, n, b, m));
+        return out;
+    }
+
+    // Sorts edits and joins the ones that touch, so a change reads as one block.
+    private static List<Edit> merge(final List<Edit> edits) {
+        edits.sort(Comparator.comparingInt(Edit::oldStart).thenComparingInt(Edit::newStart));
+        List<Edit> out = new ArrayList<>(edits.size());
+        for (Edit e : edits) {
+            Edit prev = out.isEmpty() ? null : out.get(out.size() - 1);
+            if (prev != null && prev.oldEnd() == e.oldStart() && prev.newEnd() == e.newStart()) {
+                out.set(out.size() - 1, new Edit(prev.oldStart(), e.oldEnd(), prev.newStart(), e.newEnd()));
+            } else {
+                out.add(e);
+            }
+        }
+        return out;
+    }
+
+    // Myers' diff on a[aLo, aHi) and b[bLo, bHi), divided at the middle snake.
+    private static void myers(final int[] a, int aLo, int aHi, final int[] b, int bLo, int bHi, final List<Edit> out) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi) out.add(new Edit(aLo, aHi, bLo, bHi));
+            return;
+        }
+
+        int[] split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+        if (split == null) {
+            out.add(new Edit(aLo, aHi, bLo, bHi));
+            return;
+        }
+        myers(a, aLo, split[0], b, bLo, split[1], out);
+        myers(a, split[0], aHi, b, split[1], bHi, out);
+    }
+
+    // Runs the forward and backward searches until they overlap, and returns the point where they meet.
+    private static int[] middleSnake(final int[] a, final int aLo, final int aHi, final int[] b, final int bLo, final int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int off = maxD + 1;
+        int len = 2 * maxD + 3;
+        int[] v1 = new int[len];
+        int[] v2 = new int[len];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[off + 1] = 0;
+        v2[off + 1] = 0;
+        int delta = n - m;
+        // With an odd delta the paths meet during a forward step, otherwise during a backward one
+        boolean front = (delta & 1) != 0;
+        // Diagonals whose paths left the grid are not searched again
+        int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+
+        for (int d = 0; d < maxD; d++) {
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1off = off + k1;
+                int x1 = (k1 == -d || (k1 != d && v1[k1off - 1] < v1[k1off + 1])) ? v1[k1off + 1] : v1[k1off - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1off] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2off = off + delta - k1;
+                    if (k2off >= 0 && k2off < len && v2[k2off] != -1 && x1 >= n - v2[k2off]) {
+                        return new int[] {aLo + x1, bLo + y1};
+                    }
+                }
+            }
+
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2off = off + k2;
+                int x2 = (k2 == -d || (k2 != d && v2[k2off - 1] < v2[k2off + 1])) ? v2[k2off + 1] : v2[k2off - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHi - 1 - x2] == b[bHi - 1 - y2]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2off] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1off = off + delta - k2;
+                    if (k1off >= 0 && k1off < len && v1[k1off] != -1) {
+                        int x1 = v1[k1off];
+                        int y1 = x1 - (k1off - off);
+                        if (x1 >= n - x2) return new int[] {aLo + x1, bLo + y1};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Histogram diff. Regions are handled from an explicit stack, so long files cannot overflow the call stack.
+    private static void histogram(final int[] a, final int[] b, final int alphabet, final List<Edit> out) {
+        int[] count = new int[alphabet];
+        int[] head = new int[alphabet];
+        int[] chain = new int[a.length];
+        Arrays.fill(head, -1);
+        Deque<int[]> pending = new ArrayDeque<>();
+        pending.push(new int[] {0, a.length, 0, b.length});
+
+        while (!pending.isEmpty()) {
+            int[] r = pending.pop();
+            int aLo = r[0], aHi = r[1], bLo = r[2], bHi = r[3];
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                aLo++;
+                bLo++;
+            }
+            while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                aHi--;
+                bHi--;
+            }
+            if (aLo == aHi || bLo == bHi) {
+                if (aLo < aHi || bLo < bHi) out.add(new Edit(aLo, aHi, bLo, bHi));
+                continue;
+            }
+
+            int[] anchor = findAnchor(a, aLo, aHi, b, bLo, bHi, count, head, chain);
+            if (anchor == null) {
+                myers(a, aLo, aHi, b, bLo, bHi, out);
+                continue;
+            }
+            // anchor = {aStart, bStart, length}
+            pending.push(new int[] {anchor[0] + anchor[2], aHi, anchor[1] + anchor[2], bHi});
+            pending.push(new int[] {aLo, anchor[0], bLo, anchor[1]});
+        }
+    }
+
+    // The longest common run containing a line that is as rare as possible in the old region.
+    // count, head and chain hold the occurrences of each line in the region and are cleared again before returning.
+    private static int[] findAnchor(final int[] a, final int aLo, final int aHi, final int[] b, final int bLo, final int bHi,
+                                    final int[] count, final int[] head, final int[] chain) {
+        for (int i = aHi - 1; i >= aLo; i--) {
+            count[a[i]]++;
+            chain[i] = head[a[i]];
+            head[a[i]] = i;
+        }
+
+        int[] best = null;
+        int bestCount = MAX_CHAIN + 1;
+        for (int j = bLo; j < bHi; ) {
+            int c = count[b[j]];
+            int next = j + 1;
+            if (c > 0 && c <= MAX_CHAIN && c <= bestCount) {
+                for (int i = head[b[j]]; i != -1; i = chain[i]) {
+                    // Grow the run in both directions, tracking the rarest line in it
+                    int as = i, bs = j, ae = i + 1, be = j + 1;
+                    int rarest = c;
+                    while (as > aLo && bs > bLo && a[as - 1] == b[bs - 1]) {
+                        as--;
+                        bs--;
+                        rarest = Math.min(rarest, count[a[as]]);
+                    }
+                    while (ae < aHi && be < bHi && a[ae] == b[be]) {
+                        rarest = Math.min(rarest, count[a[ae]]);
+                        ae++;
+                        be++;
+                    }
+                    if (best == null || rarest < bestCount || (rarest == bestCount && ae - as > best[2])) {
+                        best = new int[] {as, bs, ae - as};
+                        bestCount = rarest;
+                    }
+                    next = Math.max(next, be);
+                }
+            }
+            j = next;
+        }
+
+        for (int i = aLo; i < aHi; i++) {
+            count[a[i]] = 0;
+            head[a[i]] = -1;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,144 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Three-way merge of file contents (diff3), for merge.
+ *
+ * Both sides are diffed against the base with {@link LineDiff}, whose Myers diff needs only
+ * linear space. The changes are then lined up by base position: a change only one side made is
+ * taken as is, and an identical change made on both sides is taken once. Changes of the two sides
+ * that overlap or touch are a conflict, written with diff3-style markers that include the base lines.
+ *
+ * Content is handled as ISO-8859-1, which maps every byte to one char, so any encoding and any
+ * line ending comes out exactly as it went in.
+ */
+public final class LineMerge {
+
+    /**
+     * The names written after the conflict markers.
+     */
+    public record Labels(String ours, String base, String theirs) {}
+
+    /**
+     * The merged content, with conflict markers where the sides could not be reconciled.
+     */
+    public record Result(byte[] content, int conflicts) {
+        public boolean clean() {
+            return conflicts == 0;
+        }
+    }
+
+    private static final int OURS = 0;
+    private static final int THEIRS = 1;
+
+    // One edit of one side against the base
+    private record Change(int side, LineDiff.Edit edit) {}
+
+    private LineMerge() {}
+
+    /**
+     * Merges two versions of a text that both derive from {@code base}.
+     * @param base The common version; empty when both sides added the file.
+     * @return The merged text and the number of conflicts in it.
+     */
+    public static Result merge(final byte[] base, final byte[] ours, final byte[] theirs, final Labels labels,
+                               final LineDiff.Algorithm algorithm) {
+        List<String> b = splitLines(base);
+        List<List<String>> sides = List.of(splitLines(ours), splitLines(theirs));
+
+        List<Change> changes = new ArrayList<>();
+        for (LineDiff.Edit e : LineDiff.diff(b, sides.get(OURS), algorithm)) changes.add(new Change(OURS, e));
+        for (LineDiff.Edit e : LineDiff.diff(b, sides.get(THEIRS), algorithm)) changes.add(new Change(THEIRS, e));
+        // Stable: at the same base position our change comes first
+        changes.sort((x, y) -> Integer.compare(x.edit().oldStart(), y.edit().oldStart()));
+
+        StringBuilder out = new StringBuilder();
+        int conflicts = 0;
+        int pos = 0;
+        int i = 0;
+        while (i < changes.size()) {
+            // A region of the base covered by changes that overlap or touch
+            int start = changes.get(i).edit().oldStart();
+            int end = changes.get(i).edit().oldEnd();
+            int j = i + 1;
+            while (j < changes.size() && changes.get(j).edit().oldStart() <= end) {
+                end = Math.max(end, changes.get(j).edit().oldEnd());
+                j++;
+            }
+            append(out, b.subList(pos, start));
+
+            List<String> oursPart = sideLines(b, sides.get(OURS), changes.subList(i, j), OURS, start, end);
+            List<String> theirsPart = sideLines(b, sides.get(THEIRS), changes.subList(i, j), THEIRS, start, end);
+            if (oursPart == null) {
+                append(out, theirsPart);
+            } else if (theirsPart == null || oursPart.equals(theirsPart)) {
+                append(out, oursPart);
+            } else {
+                conflicts++;
+                marker(out, "<<<<<<< ", labels.ours());
+                appendLines(out, oursPart);
+                marker(out, "||||||| ", labels.base());
+                appendLines(out, b.subList(start, end));
+                marker(out, "=======", null);
+                appendLines(out, theirsPart);
+                marker(out, ">>>>>>> ", labels.theirs());
+            }
+            pos = end;
+            i = j;
+        }
+        append(out, b.subList(pos, b.size()));
+        return new Result(out.toString().getBytes(StandardCharsets.ISO_8859_1), conflicts);
+    }
+
+    // The lines one side has in place of base lines [start, end), or null if it did not change them.
+    private static List<String> sideLines(final List<String> base, final List<String> side, final List<Change> region,
+                                          final int which, final int start, final int end) {
+        LineDiff.Edit first = null;
+        LineDiff.Edit last = null;
+        for (Change c : region) {
+            if (c.side() != which) continue;
+            if (first == null) first = c.edit();
+            last = c.edit();
+        }
+        if (first == null) return null;
+        // Base lines of the region outside this side's edits are unchanged on this side
+        int from = first.newStart() - (first.oldStart() - start);
+        int to = last.newEnd() + (end - last.oldEnd());
+        return side.subList(from, to);
+    }
+
+    // Splits after every "\n", keeping the terminators; a last line without one is kept as is.
+    private static List<String> splitLines(final byte[] data) {
+        List<String> lines = new ArrayList<>();
+        if (data == null) return lines;
+        String text = new String(data, StandardCharsets.ISO_8859_1);
+        int start = 0;
+        int nl;
+        while ((nl = text.indexOf('\n', start)) != -1) {
+            lines.add(text.substring(start, nl + 1));
+            start = nl + 1;
+        }
+        if (start < text.length()) lines.add(text.substring(start));
+        return lines;
+    }
+
+    private static void append(final StringBuilder out, final List<String> lines) {
+        for (String line : lines) out.append(line);
+    }
+
+    // Lines inside a conflict: a last line without a terminator gets one, so the next marker starts a line.
+    private static void appendLines(final StringBuilder out, final List<String> lines) {
+        append(out, lines);
+        if (out.length() > 0 && out.charAt(out.length() - 1) != '\n') out.append('\n');
+    }
+
+    private static void marker(final StringBuilder out, final String marker, final String label) {
+        out.append(marker);
+        // Labels are text, not file content: store their UTF-8 bytes one char per byte like the rest
+        if (label != null) out.append(new String(label.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1));
+        out.append('\n');
+    }
+}
@@ -0,0 +1,184 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the merge bases of two commits and answers ancestry questions, for merge and the
+ * "merge-base" command.
+ *
+ * A merge base is a common ancestor that is not an ancestor of another common ancestor; a
+ * criss-cross history has more than one. Both commits are painted down to their common
+ * ancestors through a priority queue that hands out descendants before ancestors: by generation
+ * number for commits in the commit-graph, by date otherwise. The first commit reached from both
+ * sides is a base and marks everything below it stale, and the walk stops as soon as only stale
+ * commits are left, so it costs the commits between the two tips and the bases rather than the
+ * whole history.
+ */
+public class MergeBase {
+
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    // A queued commit; live if it was queued before it was known to be stale
+    private record Queued(int node, boolean live) {}
+
+    /**
+     * Returns every merge base of two commits in the current repository.
+     * @return The bases, most recent first; empty if the commits share no history.
+     */
+    public static List<String> mergeBases(final String a, final String b) {
+        return mergeBases(CommitDag.open(), a, b);
+    }
+
+    public static List<String> mergeBases(final CommitDag dag, final String a, final String b) {
+        int na = dag.node(a);
+        int nb = dag.node(b);
+        List<String> ids = new ArrayList<>();
+        if (na < 0 || nb < 0) return ids;
+        for (int n : bases(dag, na, nb)) ids.add(dag.id(n));
+        return ids;
+    }
+
+    /**
+     * Tells whether {@code ancestor} is reachable from {@code descendant}; a commit is its own ancestor.
+     */
+    public static boolean isAncestor(final String ancestor, final String descendant) {
+        return isAncestor(CommitDag.open(), ancestor, descendant);
+    }
+
+    public static boolean isAncestor(final CommitDag dag, final String ancestor, final String descendant) {
+        int na = dag.node(ancestor);
+        int nd = dag.node(descendant);
+        if (na < 0 || nd < 0) return false;
+        return isAncestor(dag, na, nd);
+    }
+
+    private static boolean isAncestor(final CommitDag dag, final int ancestor, final int descendant) {
+        if (ancestor == descendant) return true;
+        int minGen = dag.generation(ancestor);
+        if (minGen == CommitGraph.GENERATION_UNKNOWN) {
+            // Without a generation there is no safe cutoff: let the painting walk decide
+            return bases(dag, ancestor, descendant).contains(ancestor);
+        }
+        return reaches(dag, ancestor, descendant, minGen);
+    }
+
+    // Walks down from the descendant, skipping commits below minGen: every descendant of
+    // the ancestor has a higher generation, so they are never on a path to it.
+    private static boolean reaches(final CommitDag dag, final int ancestor, final int descendant, final int minGen) {
+        Flags seen = new Flags();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(order(dag));
+        queue.add(descendant);
+        seen.set(descendant, PARENT1);
+        while (!queue.isEmpty()) {
+            int c = queue.poll();
+            if (c == ancestor) return true;
+            for (int p : dag.parents(c)) {
+                if (seen.get(p) != 0 || dag.generation(p) < minGen) continue;
+                seen.set(p, PARENT1);
+                queue.add(p);
+            }
+        }
+        return false;
+    }
+
+    // The merge bases of two nodes, most recent first.
+    private static List<Integer> bases(final CommitDag dag, final int a, final int b) {
+        List<Integer> result = new ArrayList<>();
+        if (a == b) {
+            result.add(a);
+            return result;
+        }
+
+        Flags flags = new Flags();
+        Comparator<Integer> byNode = order(dag);
+        PriorityQueue<Queued> queue = new PriorityQueue<>((x, y) -> byNode.compare(x.node(), y.node()));
+        flags.set(a, PARENT1);
+        flags.set(b, PARENT2);
+        queue.add(new Queued(a, true));
+        queue.add(new Queued(b, true));
+        // Entries queued before they were stale and not yet taken; once none are left, nothing can become a base
+        int live = 2;
+
+        List<Integer> found = new ArrayList<>();
+        while (live > 0) {
+            Queued q = queue.poll();
+            if (q.live()) live--;
+            int c = q.node();
+            int f = flags.get(c);
+            int paint = f & (PARENT1 | PARENT2 | STALE);
+            if ((paint & (PARENT1 | PARENT2)) == (PARENT1 | PARENT2)) {
+                if ((f & RESULT) == 0) {
+                    flags.set(c, f | RESULT);
+                    found.add(c);
+                }
+                // Everything below a common ancestor is a common ancestor too, but not a best one
+                paint |= STALE;
+            }
+            boolean stale = (paint & STALE) != 0;
+            for (int p : dag.parents(c)) {
+                int pf = flags.get(p);
+                if ((pf & paint) == paint) continue;
+                flags.set(p, pf | paint);
+                queue.add(new Queued(p, !stale));
+                if (!stale) live++;
+            }
+        }
+
+        for (int n : found) {
+            if ((flags.get(n) & STALE) == 0) result.add(n);
+        }
+        return result.size() > 1 ? removeRedundant(dag, result) : result;
+    }
+
+    // Drops bases that are ancestors of other bases; the walk order only guarantees this with generations.
+    private static List<Integer> removeRedundant(final CommitDag dag, final List<Integer> candidates) {
+        List<Integer> kept = new ArrayList<>();
+        for (int c : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != c && reaches(dag, c, other, generationOrZero(dag, c))) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) kept.add(c);
+        }
+        return kept;
+    }
+
+    private static int generationOrZero(final CommitDag dag, final int node) {
+        int gen = dag.generation(node);
+        return gen == CommitGraph.GENERATION_UNKNOWN ? 0 : gen;
+    }
+
+    // Descendants first: higher generation, then later date; ties broken by node for a stable order.
+    private static Comparator<Integer> order(final CommitDag dag) {
+        return (x, y) -> {
+            int g = Integer.compare(dag.generation(y), dag.generation(x));
+            if (g != 0) return g;
+            int d = Long.compare(dag.date(y), dag.date(x));
+            return d != 0 ? d : Integer.compare(x, y);
+        };
+    }
+
+    // Flag bits per node, grown as nodes are met.
+    private static final class Flags {
+        private int[] bits = new int[64];
+
+        int get(final int node) {
+            return node < bits.length ? bits[node] : 0;
+        }
+
+        void set(final int node, final int value) {
+            if (node >= bits.length) bits = Arrays.copyOf(bits, Math.max(node + 1, bits.length * 2));
+            bits[node] = value;
+        }
+    }
+}
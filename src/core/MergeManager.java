@@ -1,102 +1,25 @@
 package core;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Implements branch merge logic (fast-forward, 3-way, conflict detection) without deleting branches.
+ * Files changed differently on both sides are merged line by line ({@link LineMerge}) on
+ * {@code core.threads} workers; only overlapping changes are left as conflicts, marked in the file.
  */
 public class MergeManager {
 
     private static final String REFS_HEADS_DIR = ".smk/refs/heads/";
-
-    /**
-     * Finds the common ancestor commit between two commit hashes.
-     * Handles merge commits (commits with multiple parents) by following all parents.
-     */
-    private static String findCommonAncestor(String commit1, String commit2) {
-        // Collect all ancestors of commit1 (including merge commits)
-        Set<String> ancestors1 = new HashSet<>();
-        Deque<String> queue1 = new ArrayDeque<>();
-        queue1.add(commit1);
-        Set<String> visited1 = new HashSet<>();
-        
-        while (!queue1.isEmpty()) {
-            String cur = queue1.poll();
-            if (visited1.contains(cur)) continue;
-            visited1.add(cur);
-            ancestors1.add(cur);
-            
-            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(cur);
-            if (!"commit".equals(obj.type())) continue;
-            
-            List<String> parents = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new StringReader(obj.content()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("parent ")) {
-                        parents.add(line.substring("parent ".length()));
-                    }
-                    if (line.isEmpty()) break;
-                }
-            } catch (IOException e) {
-                break;
-            }
-            
-            // Add all parents to queue (for merge commits)
-            for (String parent : parents) {
-                if (!parent.isEmpty() && !visited1.contains(parent)) {
-                    queue1.add(parent);
-                }
-            }
-        }
-
-        // Find first common ancestor when traversing commit2's ancestors
-        Deque<String> queue2 = new ArrayDeque<>();
-        queue2.add(commit2);
-        Set<String> visited2 = new HashSet<>();
-        
-        while (!queue2.isEmpty()) {
-            String cur = queue2.poll();
-            if (visited2.contains(cur)) continue;
-            visited2.add(cur);
-            
-            if (ancestors1.contains(cur)) {
-                return cur;
-            }
-            
-            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(cur);
-            if (!"commit".equals(obj.type())) continue;
-            
-            List<String> parents = new ArrayList<>();
-            try (BufferedReader reader = new BufferedReader(new StringReader(obj.content()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("parent ")) {
-                        parents.add(line.substring("parent ".length()));
-                    }
-                    if (line.isEmpty()) break;
-                }
-            } catch (IOException e) {
-                break;
-            }
-            
-            // Add all parents to queue (for merge commits)
-            for (String parent : parents) {
-                if (!parent.isEmpty() && !visited2.contains(parent)) {
-                    queue2.add(parent);
-                }
-            }
-        }
-
-        return ""; // No common ancestor found
-    }
+    private static final String THREADS_KEY = "core.threads";
 
     /**
      * Performs a merge from the target branch to the current HEAD.
@@ -113,28 +36,30 @@ public class MergeManager {
         try {
             target = Utils.readFileStr(refPathStr).trim();
         } catch (IOException e) {
-            System.out.println("Branch not found: " + branch);
+            Output.println("Branch not found: " + branch);
             return;
         }
 
         if (target.isEmpty()) {
-            System.out.println("Branch not found: " + branch);
+            Output.println("Branch not found: " + branch);
             return;
         }
 
         String cur = CommitManager.readRefHead();
         if (cur.isEmpty()) {
-            System.out.println("Cannot merge: no commits in current branch.");
+            Output.println("Cannot merge: no commits in current branch.");
             return;
         }
 
         if (cur.equals(target)) {
-            System.out.println("Already up to date.");
+            Output.println("Already up to date.");
             return;
         }
 
-        // Check if fast-forward merge is possible
-        String ancestor = findCommonAncestor(cur, target);
+        // Check if fast-forward merge is possible: the walk for the bases only covers
+        // the commits between the two tips, and stops at the current one if it is a base
+        List<String> bases = MergeBase.mergeBases(cur, target);
+        String ancestor = bases.isEmpty() ? "" : bases.get(0);
         if (ancestor.equals(cur)) {
             // Fast-forward merge: current is ancestor of target
             // No new commit is created, just move HEAD forward
@@ -143,126 +68,106 @@ public class MergeManager {
             IndexMap newTree = CommitManager.readTreeFromCommit(target);
 
             if (newTree.isEmpty()) {
-                System.out.println("Nothing to merge from " + branch + ".");
+                Output.println("Nothing to merge from " + branch + ".");
                 return;
             }
 
             // Update working directory
-            UpdatDir(oldTree, newTree);
+            CheckoutManager.checkout(oldTree, newTree);
             CommitManager.writeRefHead(target);
-            System.out.println("Fast-forward merged '" + branch + "' into current branch.");
-            System.out.println("Note: Branch '" + branch + "' still exists and was not deleted.");
+            Output.println("Fast-forward merged '" + branch + "' into current branch.");
+            Output.println("Note: Branch '" + branch + "' still exists and was not deleted.");
             return;
         }
         
         // Check for reverse fast-forward (target is ancestor of current)
         if (ancestor.equals(target)) {
             // Current branch already contains all commits from target
-            System.out.println("Already up to date. Current branch contains all commits from '" + branch + "'.");
+            Output.println("Already up to date. Current branch contains all commits from '" + branch + "'.");
             return;
         }
 
-        // 3-way merge
-        IndexMap baseTree = CommitManager.readTreeFromCommit(ancestor);
-        IndexMap curTree = CommitManager.readHeadTree();
-        IndexMap targetTree = CommitManager.readTreeFromCommit(target);
-
-        IndexMap mergedTree = new IndexMap();
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(baseTree.keySet());
-        allFiles.addAll(curTree.keySet());
-        allFiles.addAll(targetTree.keySet());
+        if (bases.size() > 1) {
+            // Criss-cross history: merge against the most recent base
+            Output.println("Note: " + bases.size() + " merge bases found, using " + ancestor + ".");
+        }
 
-        boolean hasConflicts = false;
+        // 3-way merge: start from the current tree and only visit paths in subtrees where
+        // the target differs from both the base and the current branch
+        String baseTreeHash = CommitManager.readTreeHash(ancestor);
+        String curTreeHash = CommitManager.readTreeHash(cur);
+        String targetTreeHash = CommitManager.readTreeHash(target);
+        IndexMap curTree = CommitManager.readTree(curTreeHash);
 
-        for (String path : allFiles) {
-            String baseHash = baseTree.get(path);
-            String curHash = curTree.get(path);
-            String targetHash = targetTree.get(path);
+        IndexMap mergedTree = new IndexMap();
+        mergedTree.putAll(curTree);
+        boolean[] conflicts = {false};
+        List<ContentMerge> contentMerges = new ArrayList<>();
 
-            // Determine merge result
-            if (baseHash == null) {
-                // File is new in both branches
-                if (curHash != null && targetHash != null) {
-                    if (!curHash.equals(targetHash)) {
-                        // Conflict: both branches added different content
-                        System.out.println("CONFLICT: " + path + " added in both branches with different content");
-                        hasConflicts = true;
-                        // Take current version for now
-                        mergedTree.put(path, curHash);
-                    } else {
-                        mergedTree.put(path, curHash);
+        TreeManager.walk(new String[] {baseTreeHash, curTreeHash, targetTreeHash},
+                hashes -> Objects.equals(hashes[1], hashes[2]) || Objects.equals(hashes[0], hashes[2]),
+                (path, hashes) -> {
+                    if (hashes[1] != null && hashes[2] != null && !hashes[1].equals(hashes[2])
+                            && !hashes[1].equals(hashes[0]) && !hashes[2].equals(hashes[0])) {
+                        // Changed differently on both sides: merge the contents below
+                        contentMerges.add(new ContentMerge(path, hashes[0], hashes[1], hashes[2]));
+                        return;
                     }
-                } else if (curHash != null) {
-                    mergedTree.put(path, curHash);
-                } else if (targetHash != null) {
-                    mergedTree.put(path, targetHash);
-                }
+                    Resolution r = mergePath(path, hashes[0], hashes[1], hashes[2], branch);
+                    if (r.conflict()) conflicts[0] = true;
+                    if (r.hash() == null) mergedTree.remove(path);
+                    else mergedTree.put(path, r.hash());
+                });
+
+        LineMerge.Labels labels = new LineMerge.Labels("HEAD",
+                ancestor.isEmpty() ? "empty" : ancestor.substring(0, Math.min(7, ancestor.length())), branch);
+        // Conflicted files keep the current version in the index; the working file gets the markers
+        Map<String, byte[]> conflictFiles = new TreeMap<>();
+        for (MergedFile m : mergeContents(contentMerges, labels)) {
+            String path = m.merge().path();
+            if (m.hash() != null) {
+                Output.println("Auto-merging " + path);
+                mergedTree.put(path, m.hash());
+                continue;
+            }
+            conflicts[0] = true;
+            if (m.content() == null) {
+                Output.println("CONFLICT: " + path + (m.merge().base() == null ? " added in both branches" : " modified in both branches")
+                        + " (binary or unreadable, current version kept)");
             } else {
-                // File existed in base
-                if (curHash != null && targetHash != null) {
-                    if (curHash.equals(targetHash)) {
-                        // Both changed the same way
-                        mergedTree.put(path, curHash);
-                    } else if (curHash.equals(baseHash)) {
-                        // Only target changed
-                        mergedTree.put(path, targetHash);
-                    } else if (targetHash.equals(baseHash)) {
-                        // Only current changed
-                        mergedTree.put(path, curHash);
-                    } else {
-                        // Conflict: both changed differently
-                        System.out.println("CONFLICT: " + path + " modified in both branches");
-                        hasConflicts = true;
-                        // Take current version for now
-                        mergedTree.put(path, curHash);
-                    }
-                } else if (curHash != null) {
-                    if (curHash.equals(baseHash)) {
-                        // Deleted in target
-                        // Don't add to merged tree (file is deleted)
-                    } else {
-                        // Modified in current, deleted in target
-                        System.out.println("CONFLICT: " + path + " modified in current, deleted in " + branch);
-                        hasConflicts = true;
-                        mergedTree.put(path, curHash);
-                    }
-                } else if (targetHash != null) {
-                    if (targetHash.equals(baseHash)) {
-                        // Deleted in current
-                        // Don't add to merged tree
-                    } else {
-                        // Modified in target, deleted in current
-                        System.out.println("CONFLICT: " + path + " deleted in current, modified in " + branch);
-                        hasConflicts = true;
-                        mergedTree.put(path, targetHash);
-                    }
-                } else {
-                    // Deleted in both - don't add to merged tree
-                }
+                Output.println("Auto-merging " + path);
+                Output.println("CONFLICT (content): Merge conflict in " + path);
+                conflictFiles.put(path, m.content());
             }
         }
+        boolean hasConflicts = conflicts[0];
 
         if (hasConflicts) {
             // Merge with conflicts: merge stops, files enter conflicted state
             // The source branch is NOT deleted - it still exists
             // User must manually resolve conflicts and commit
-            System.out.println("Merge conflicts detected. Resolve conflicts and commit.");
-            System.out.println("Note: Branch '" + branch + "' still exists and was not deleted.");
-            System.out.println("After resolving conflicts, commit to complete the merge.");
-            IndexManager.writeIndex(mergedTree);
+            CheckoutManager.checkout(curTree, mergedTree);
+            for (Map.Entry<String, byte[]> kv : conflictFiles.entrySet()) {
+                try {
+                    Utils.writeFile(Paths.get(kv.getKey()), kv.getValue());
+                } catch (IOException e) {
+                    Output.error("Error writing file " + kv.getKey() + ": " + e.getMessage());
+                }
+            }
+            Output.println("Merge conflicts detected. Resolve conflicts and commit.");
+            Output.println("Note: Branch '" + branch + "' still exists and was not deleted.");
+            Output.println("After resolving conflicts, commit to complete the merge.");
             // Note: Merge is aborted if conflicts are not resolved and committed
             return;
         }
 
         // Update working directory with merged tree
-        IndexMap oldTree = CommitManager.readHeadTree();
-        UpdatDir(oldTree, mergedTree);
+        CheckoutManager.checkout(curTree, mergedTree);
 
         // Three-way merge: Create merge commit with two parents
         // The source branch is NOT deleted - it still exists
         // Commits from the source branch do not move - master just points to the merge commit
-        String treeHash = CommitManager.writeTreeFromIndex(mergedTree);
+        String treeHash = CommitManager.writeTreeFromIndex(mergedTree, curTree);
         StringBuilder meta = new StringBuilder();
         meta.append("tree ").append(treeHash).append("\n");
         meta.append("parent ").append(cur).append("\n");
@@ -275,34 +180,100 @@ public class MergeManager {
         String mergeCommitHash = ObjectManager.hashAndStoreObject("commit", meta.toString());
         CommitManager.writeRefHead(mergeCommitHash);
 
-        System.out.println("Merged '" + branch + "' into current branch. Commit: " + mergeCommitHash);
-        System.out.println("Note: Branch '" + branch + "' still exists and was not deleted.");
+        Output.println("Merged '" + branch + "' into current branch. Commit: " + mergeCommitHash);
+        Output.println("Note: Branch '" + branch + "' still exists and was not deleted.");
     }
 
-    private static void UpdatDir(IndexMap oldTree, IndexMap newTree) {
-        for (final String path : oldTree.keySet()) {
-            if (!newTree.containsKey(path)) {
-                try {
-                    Files.deleteIfExists(Paths.get(path));
-                } catch (IOException ignored) {}
+    // The merged hash of one path (null if the path is deleted), and whether it is a conflict.
+    private record Resolution(String hash, boolean conflict) {}
+
+    // A file changed differently on both sides; base is null when both added it.
+    private record ContentMerge(String path, String base, String ours, String theirs) {}
+
+    // The outcome of a content merge: the stored blob when clean, otherwise the text with conflict
+    // markers, or neither when the file is binary or could not be read.
+    private record MergedFile(ContentMerge merge, String hash, byte[] content) {}
+
+    // Paths changed on one side only, or the same way on both; changes on both sides go to mergeContents.
+    private static Resolution mergePath(String path, String baseHash, String curHash, String targetHash, String branch) {
+        if (baseHash == null) {
+            // File is new in one branch, or identical in both
+            return new Resolution(curHash != null ? curHash : targetHash, false);
+        }
+
+        // File existed in base
+        if (curHash != null && targetHash != null) {
+            // Both changed the same way, or only one side changed
+            return new Resolution(curHash.equals(baseHash) ? targetHash : curHash, false);
+        } else if (curHash != null) {
+            if (curHash.equals(baseHash)) {
+                // Deleted in target
+                return new Resolution(null, false);
+            }
+            // Modified in current, deleted in target
+            Output.println("CONFLICT: " + path + " modified in current, deleted in " + branch);
+            return new Resolution(curHash, true);
+        } else if (targetHash != null) {
+            if (targetHash.equals(baseHash)) {
+                // Deleted in current
+                return new Resolution(null, false);
             }
+            // Modified in target, deleted in current
+            Output.println("CONFLICT: " + path + " deleted in current, modified in " + branch);
+            return new Resolution(targetHash, true);
         }
+        // Deleted in both
+        return new Resolution(null, false);
+    }
 
-        for (Map.Entry<String, String> kv : newTree.entrySet()) {
-            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(kv.getValue());
-            if (!"blob".equals(obj.type())) continue;
+    /**
+     * Merges the contents of files changed on both sides, on {@code core.threads} workers.
+     * @return One result per file, in the order given.
+     */
+    private static List<MergedFile> mergeContents(final List<ContentMerge> merges, final LineMerge.Labels labels) {
+        List<MergedFile> results = new ArrayList<>(merges.size());
+        if (merges.isEmpty()) return results;
+        LineDiff.Algorithm algorithm = LineDiff.Options.fromConfig().algorithm();
+        int threads = Math.max(1, Math.min(merges.size(),
+                ConfigManager.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors())));
+        if (threads == 1) {
+            for (ContentMerge m : merges) results.add(mergeContent(m, labels, algorithm));
+            return results;
+        }
 
-            Path p = Paths.get(kv.getKey());
-            try {
-                if (p.getParent() != null) {
-                    Files.createDirectories(p.getParent());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<MergedFile>> futures = new ArrayList<>(merges.size());
+            for (ContentMerge m : merges) futures.add(pool.submit(() -> mergeContent(m, labels, algorithm)));
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(new MergedFile(merges.get(i), null, null));
+                } catch (ExecutionException e) {
+                    Output.error("Error merging " + merges.get(i).path() + ": " + e.getCause());
+                    results.add(new MergedFile(merges.get(i), null, null));
                 }
-                Utils.writeFile(p, obj.content());
-            } catch (IOException e) {
-                System.err.println("Error writing file during merge: " + e.getMessage());
             }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private static MergedFile mergeContent(final ContentMerge m, final LineMerge.Labels labels,
+                                           final LineDiff.Algorithm algorithm) {
+        ObjectManager.ObjectContent ours = ObjectManager.readObjectContent(m.ours());
+        ObjectManager.ObjectContent theirs = ObjectManager.readObjectContent(m.theirs());
+        byte[] base = m.base() == null ? new byte[0] : ObjectManager.readObjectContent(m.base()).bytes();
+        if (!"blob".equals(ours.type()) || !"blob".equals(theirs.type())
+                || LineDiff.isBinary(base) || LineDiff.isBinary(ours.bytes()) || LineDiff.isBinary(theirs.bytes())) {
+            return new MergedFile(m, null, null);
         }
 
-        IndexManager.writeIndex(newTree);
+        LineMerge.Result r = LineMerge.merge(base, ours.bytes(), theirs.bytes(), labels, algorithm);
+        if (!r.clean()) return new MergedFile(m, null, r.content());
+        return new MergedFile(m, ObjectManager.hashAndStoreObject("blob", r.content()), null);
     }
-}
\ No newline at end of file
+}
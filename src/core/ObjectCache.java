@@ -0,0 +1,161 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least-recently-used cache of objects by ID, bounded by the estimated size of its values in bytes.
+ *
+ * Object IDs are content hashes, so a cached value never goes stale and one cache can serve every
+ * repository a process reads. The entries are spread over segments, each with its own lock and an
+ * equal share of the budget, so concurrent readers rarely wait on each other. A value is loaded
+ * outside the lock; two threads missing the same ID at once may both load it.
+ */
+public final class ObjectCache<V> {
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * A snapshot of the counters of one cache.
+     */
+    public record Stats(String name, long hits, long misses, long evictions, int entries, long bytes, long maxBytes) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d hits, %d misses (%.1f%%), %d evictions, %d entries, %d/%d bytes",
+                    name, hits, misses, hitRate() * 100, evictions, entries, bytes, maxBytes);
+        }
+    }
+
+    private record Entry<V>(V value, long weight) {}
+
+    private final class Segment {
+        private final LinkedHashMap<String, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        synchronized V get(final String id) {
+            Entry<V> e = map.get(id);
+            return e == null ? null : e.value();
+        }
+
+        synchronized void put(final String id, final V value, final long weight) {
+            Entry<V> old = map.put(id, new Entry<>(value, weight));
+            if (old != null) bytes -= old.weight();
+            bytes += weight;
+            trim();
+        }
+
+        synchronized void trim() {
+            Iterator<Entry<V>> it = map.values().iterator();
+            while (bytes > segmentBytes && it.hasNext()) {
+                bytes -= it.next().weight();
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+    }
+
+    private final String name;
+    private volatile long maxBytes;
+    private volatile long segmentBytes;
+    private final ToLongFunction<V> weigher;
+    private final List<Segment> segments = new ArrayList<>(SEGMENTS);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param name The name shown in the stats.
+     * @param maxBytes The budget; 0 disables the cache.
+     * @param weigher Estimates the memory a value takes, in bytes.
+     */
+    public ObjectCache(final String name, final long maxBytes, final ToLongFunction<V> weigher) {
+        this.name = name;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.segmentBytes = this.maxBytes / SEGMENTS;
+        this.weigher = weigher;
+        for (int i = 0; i < SEGMENTS; i++) segments.add(new Segment());
+    }
+
+    /**
+     * Returns the cached value of an ID, or null on a miss.
+     */
+    public V get(final String id) {
+        V v = segment(id).get(id);
+        if (v != null) hits.increment();
+        else misses.increment();
+        return v;
+    }
+
+    /**
+     * Returns the cached value of an ID, loading and caching it on a miss.
+     * @param loader Loads the value; a null result is returned but not cached.
+     */
+    public V get(final String id, final Function<String, V> loader) {
+        V v = get(id);
+        if (v != null) return v;
+        v = loader.apply(id);
+        if (v != null) put(id, v);
+        return v;
+    }
+
+    /**
+     * Caches a value. Values larger than a segment's share of the budget are not cached at all:
+     * they would only push everything else out.
+     */
+    public void put(final String id, final V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > segmentBytes) return;
+        segment(id).put(id, value, weight);
+    }
+
+    /**
+     * Changes the budget, evicting the least recently used entries that no longer fit.
+     */
+    public void resize(final long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.segmentBytes = this.maxBytes / SEGMENTS;
+        for (Segment s : segments) s.trim();
+    }
+
+    public void clear() {
+        for (Segment s : segments) s.clear();
+    }
+
+    public Stats stats() {
+        int entries = 0;
+        long bytes = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                entries += s.map.size();
+                bytes += s.bytes;
+            }
+        }
+        return new Stats(name, hits.sum(), misses.sum(), evictions.sum(), entries, bytes, maxBytes);
+    }
+
+    private Segment segment(final String id) {
+        return segments.get(Math.floorMod(id.hashCode(), SEGMENTS));
+    }
+
+    /**
+     * A rough size in bytes of a String, for weighers.
+     */
+    public static long weightOf(final String s) {
+        return s == null ? 0 : 40 + s.length();
+    }
+}
@@ -1,92 +1,554 @@
 package core;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Objects;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Stores and retrieves content-addressed objects (blobs, trees, commits) in .smk/objects.
+ * Object IDs are the SHA-256 of {@code type\nlength\n} followed by the content bytes.
+ * When {@code core.compression} (zlib level 1-9) is set, object files hold that same
+ * header and content deflated; readers accept both plain and compressed files.
+ * Objects are written to two-level fan-out paths ({@code objects/ab/cdef...}); the flat
+ * {@code objects/abcdef...} layout of older repositories is still read.
+ * Objects in packfiles (see {@link PackManager}) are found before loose ones.
+ *
+ * Objects read are kept in an in-process LRU cache, next to parsed trees ({@link TreeManager})
+ * and parsed commits ({@link CommitGraphManager}). The caches share a budget of
+ * {@code core.objectCacheMB} (default 64; 0 disables them): half for objects, a quarter each
+ * for trees and commits. Large blobs are not cached. The budget is read again after the
+ * configuration is reloaded, as the daemon does before each command.
  */
 public class ObjectManager {
 
     private static final String VCS_DIR = ".smk";
     private static final String OBJECTS_DIR = VCS_DIR + "/objects";
+    private static final String COMPRESSION_KEY = "core.compression";
+    private static final int IO_BUFFER = 64 * 1024;
+    private static final String CACHE_KEY = "core.objectCacheMB";
+    private static final int DEFAULT_CACHE_MB = 64;
+
+    // First byte of a zlib stream with a 32K window; plain objects start with their type name.
+    private static final int ZLIB_CMF = 0x78;
+
+    /**
+     * The type and content length recorded in an object's header.
+     */
+    public record ObjectHeader(String type, long size) {}
 
     /**
      * Represents the content read from an object file.
-     * @param type The object type ("blob", "tree", "commit").
-     * @param content The raw content of the object (excluding header).
+     * The raw bytes are kept as stored; the String view is only decoded (as UTF-8) when asked for,
+     * so blobs that are just copied to the working tree are never decoded at all.
+     */
+    public static final class ObjectContent {
+
+        private static final ObjectContent EMPTY = new ObjectContent("", new byte[0]);
+
+        private final String type;
+        private final byte[] bytes;
+        private String content;
+
+        /**
+         * @param type The object type ("blob", "tree", "commit").
+         * @param bytes The raw content of the object (excluding header).
+         */
+        public ObjectContent(final String type, final byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        /**
+         * The raw content bytes. The array is shared, callers must not modify it.
+         */
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * The content as a read-only buffer over the raw bytes.
+         */
+        public ByteBuffer buffer() {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        /**
+         * The content as a stream over the raw bytes.
+         */
+        public InputStream stream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        public int size() {
+            return bytes.length;
+        }
+
+        /**
+         * The content decoded as UTF-8, decoded on first use.
+         */
+        public String content() {
+            String s = content;
+            if (s == null) {
+                s = new String(bytes, StandardCharsets.UTF_8);
+                content = s;
+            }
+            return s;
+        }
+    }
+
+    // The caches start with no budget: sizeCaches() gives them their share of core.objectCacheMB before use.
+    // Content is counted twice: the bytes, and the String most trees and commits are decoded to
+    private static final ObjectCache<ObjectContent> objectCache =
+            new ObjectCache<>("objects", 0, o -> 64 + 2L * o.size());
+    private static final ObjectCache<List<TreeManager.Entry>> treeCache =
+            new ObjectCache<>("trees", 0, entries -> {
+                long w = 64;
+                for (TreeManager.Entry e : entries) w += 32 + ObjectCache.weightOf(e.name()) + ObjectCache.weightOf(e.hash());
+                return w;
+            });
+    private static final ObjectCache<CommitGraph.Commit> commitCache =
+            new ObjectCache<>("commits", 0, c -> {
+                long w = 64 + ObjectCache.weightOf(c.id()) + ObjectCache.weightOf(c.tree());
+                for (String p : c.parents()) w += ObjectCache.weightOf(p);
+                return w;
+            });
+    // The configuration generation the caches were last sized for
+    private static volatile long cacheGeneration = -1;
+
+    // Sizes the caches from core.objectCacheMB if the configuration changed since they last were.
+    private static void sizeCaches() {
+        long generation = ConfigManager.generation();
+        if (generation == cacheGeneration) return;
+        synchronized (ObjectManager.class) {
+            if (generation == cacheGeneration) return;
+            long bytes = Math.max(0, ConfigManager.getInt(CACHE_KEY, DEFAULT_CACHE_MB)) * (1L << 20);
+            objectCache.resize(bytes / 2);
+            treeCache.resize(bytes / 4);
+            commitCache.resize(bytes / 4);
+            cacheGeneration = generation;
+        }
+    }
+
+    /**
+     * Parsed tree objects by ID, for {@link TreeManager}.
+     */
+    public static ObjectCache<List<TreeManager.Entry>> treeCache() {
+        sizeCaches();
+        return treeCache;
+    }
+
+    /**
+     * Parsed commit objects by ID, for {@link CommitGraphManager}.
+     */
+    public static ObjectCache<CommitGraph.Commit> commitCache() {
+        sizeCaches();
+        return commitCache;
+    }
+
+    /**
+     * The counters of the object, tree and commit caches.
+     */
+    public static List<ObjectCache.Stats> cacheStats() {
+        sizeCaches();
+        return List.of(objectCache.stats(), treeCache.stats(), commitCache.stats());
+    }
+
+    /**
+     * Where an object with this ID is written: {@code objects/<first 2 hex chars>/<rest>}.
+     */
+    private static Path objectPath(final Path objectsDir, final String id) {
+        if (id.length() <= 2) return objectsDir.resolve(id);
+        return objectsDir.resolve(id.substring(0, 2)).resolve(id.substring(2));
+    }
+
+    /**
+     * Resolves the file of an existing object in either the fan-out or the flat layout.
+     * @param objectsDir The objects directory of the repository.
+     * @param id The hash ID of the object.
+     * @return The object file; the fan-out path if the object exists in neither layout.
+     */
+    public static Path objectFile(final Path objectsDir, final String id) {
+        Path sharded = objectPath(objectsDir, id);
+        if (Files.exists(sharded)) return sharded;
+        Path flat = objectsDir.resolve(id);
+        return Files.exists(flat) ? flat : sharded;
+    }
+
+    private static Path objectFile(final String id) {
+        return objectFile(Paths.get(OBJECTS_DIR), id);
+    }
+
+    /**
+     * Checks whether an object is stored, packed or loose.
+     */
+    public static boolean hasObject(final String id) {
+        return PackManager.contains(Paths.get(OBJECTS_DIR), id) || Files.exists(objectFile(id));
+    }
+
+    /**
+     * Deletes the loose copy of an object, and its fan-out directory once that is empty.
+     */
+    public static void deleteLooseObject(final Path objectsDir, final String id) throws IOException {
+        Path p = objectFile(objectsDir, id);
+        Files.deleteIfExists(p);
+        Path parent = p.getParent();
+        if (!parent.equals(objectsDir)) {
+            try (DirectoryStream<Path> rest = Files.newDirectoryStream(parent)) {
+                if (rest.iterator().hasNext()) return;
+            }
+            Files.deleteIfExists(parent);
+        }
+    }
+
+    /**
+     * Lists the IDs of all loose objects, in either layout.
+     * Temp files and anything else that is not named like an object are skipped.
+     * @param objectsDir The objects directory of the repository.
+     */
+    public static List<String> listObjectIds(final Path objectsDir) throws IOException {
+        List<String> ids = new ArrayList<>();
+        if (!Files.isDirectory(objectsDir)) return ids;
+        try (DirectoryStream<Path> top = Files.newDirectoryStream(objectsDir)) {
+            for (Path entry : top) {
+                String name = entry.getFileName().toString();
+                if (!isHex(name)) continue;
+                if (name.length() == 2 && Files.isDirectory(entry)) {
+                    try (DirectoryStream<Path> shard = Files.newDirectoryStream(entry)) {
+                        for (Path obj : shard) {
+                            String rest = obj.getFileName().toString();
+                            if (isHex(rest)) ids.add(name + rest);
+                        }
+                    }
+                } else if (name.length() > 2 && Files.isRegularFile(entry)) {
+                    ids.add(name);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Lists the IDs of all objects, loose and packed, each once.
+     * @param objectsDir The objects directory of the repository.
+     */
+    public static List<String> listAllObjectIds(final Path objectsDir) throws IOException {
+        Set<String> ids = new LinkedHashSet<>(PackManager.listIds(objectsDir));
+        ids.addAll(listObjectIds(objectsDir));
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Moves objects stored in the flat layout into fan-out directories.
+     * @return The number of objects moved.
+     */
+    public static int shardLooseObjects() throws IOException {
+        Path dir = Paths.get(OBJECTS_DIR);
+        List<Path> flat = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return 0;
+        try (DirectoryStream<Path> top = Files.newDirectoryStream(dir)) {
+            for (Path entry : top) {
+                String name = entry.getFileName().toString();
+                if (name.length() > 2 && isHex(name) && Files.isRegularFile(entry)) flat.add(entry);
+            }
+        }
+
+        for (Path from : flat) {
+            Path to = objectPath(dir, from.getFileName().toString());
+            if (Files.exists(to)) {
+                // Same ID means same content: the sharded copy wins
+                Files.delete(from);
+            } else {
+                Files.createDirectories(to.getParent());
+                Utils.replaceFile(from, to);
+            }
+        }
+        return flat.size();
+    }
+
+    private static boolean isHex(final String s) {
+        if (s.isEmpty()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the digest used for object IDs.
      */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
 
-    public record ObjectContent(String type, String content) {}
+    private static byte[] header(final String type, final long length) {
+        return (type + "\n" + length + "\n").getBytes(StandardCharsets.UTF_8);
+    }
 
     /**
-     * Calculates a simple hash for the content.
-     * Note: This uses Java's built-in String hashCode for simplicity,
-     * but a real VCS would use a secure hash like SHA-1 or SHA-256 (e.g., using MessageDigest).
-     * @param data The full content string (including header).
-     * @return A hexadecimal string representation of the hash.
+     * Calculates the SHA-256 object ID over the header and content bytes.
+     * The two parts are fed to the digest separately, so the full object is never concatenated in memory.
+     * @param type The object type ("blob", "tree", "commit").
+     * @param content The raw content bytes.
+     * @return The 64 character hexadecimal object ID.
      */
-    private static String calculateContentHash(final String data) {
-        // C++ std::hash<std::string> is translated here to Java's String.hashCode()
-        // and then converted to a fixed-width hexadecimal string.
-        long h = Objects.hashCode(data) & 0xFFFFFFFFL; // Use long to ensure positive value for hexadecimal
-        return String.format("%016x", h);
+    private static String calculateContentHash(final String type, final byte[] content) {
+        MessageDigest md = newDigest();
+        md.update(header(type, content.length));
+        md.update(content);
+        return Utils.bytesToHex(md.digest());
     }
 
     /**
      * Hashes the object content, stores the full object (header + content) in the object store,
      * and returns the hash ID.
      * @param type The object type ("blob", "tree", "commit").
-     * @param content The raw content string.
+     * @param content The raw content string, stored as UTF-8.
      * @return The calculated hash ID.
      */
     public static String hashAndStoreObject(final String type, final String content) {
-        String header = type + "\n" + content.length() + "\n";
-        String full = header + content;
-        String id = calculateContentHash(full);
+        return hashAndStoreObject(type, content.getBytes(StandardCharsets.UTF_8));
+    }
 
-        Path path = Paths.get(OBJECTS_DIR, id);
+    /**
+     * Hashes the raw object content, stores the full object (header + content) in the object store,
+     * and returns the hash ID.
+     * @param type The object type ("blob", "tree", "commit").
+     * @param data The raw content bytes.
+     * @return The calculated hash ID.
+     */
+    public static String hashAndStoreObject(final String type, final byte[] data) {
+        String id = calculateContentHash(type, data);
 
         try {
-            if (!Files.exists(path)) {
-                Utils.writeFile(path, full);
+            // Equal IDs mean equal content, so an existing object never needs rewriting
+            if (!hasObject(id)) {
+                writeObjectFile(objectPath(Paths.get(OBJECTS_DIR), id), header(type, data.length), data);
             }
         } catch (IOException e) {
-            System.err.println("Error storing object " + id + ": " + e.getMessage());
+            Output.error("Error storing object " + id + ": " + e.getMessage());
         }
 
         return id;
     }
 
+    /**
+     * Stores an object as a loose file even when a pack already holds it,
+     * e.g. to keep it once that pack is deleted.
+     * @return The hash ID of the object.
+     */
+    public static String storeLooseObject(final Path objectsDir, final String type, final byte[] data) throws IOException {
+        String id = calculateContentHash(type, data);
+        if (!Files.exists(objectFile(objectsDir, id))) {
+            writeObjectFile(objectPath(objectsDir, id), header(type, data.length), data);
+        }
+        return id;
+    }
+
+    // Writes to a temp file first so a crash never leaves a truncated object under its final ID.
+    private static void writeObjectFile(final Path path, final byte[] header, final byte[] data) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmp = Files.createTempFile(path.getParent(), "tmp_obj_", "");
+        try {
+            try (OutputStream out = openObjectOutput(tmp)) {
+                out.write(header);
+                out.write(data);
+            }
+            Utils.replaceFile(tmp, path);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Opens a new object file for writing, deflating it when compression is configured.
+     */
+    private static OutputStream openObjectOutput(final Path tmp) throws IOException {
+        OutputStream out = Files.newOutputStream(tmp);
+        int level = ConfigManager.getInt(COMPRESSION_KEY, 0);
+        if (level <= 0) return out;
+
+        Deflater deflater = new Deflater(Math.min(level, Deflater.BEST_COMPRESSION));
+        return new DeflaterOutputStream(out, deflater, IO_BUFFER) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // A caller-supplied Deflater is not released by close()
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens an object file positioned at its header, inflating on the fly when it is compressed.
+     * Only as much of the file as the caller reads is ever inflated.
+     */
+    private static InputStream openObjectInput(final Path p) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(Files.newInputStream(p));
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first != ZLIB_CMF) return in;
+
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
     /**
      * Reads an object from the object store using its ID.
      * @param id The hash ID of the object.
-     * @return An ObjectContent record containing the type and content, or empty if not found.
+     * @return An ObjectContent containing the type and content, or empty if not found.
      */
     public static ObjectContent readObjectContent(final String id) {
-        String obj;
-        try {
-            obj = Utils.readFileStr(OBJECTS_DIR + "/" + id);
-        } catch (IOException e) {
-            return new ObjectContent("", "");
+        return readObject(Paths.get(OBJECTS_DIR), id);
+    }
+
+    /**
+     * Reads an object from the packs or loose objects of a given objects directory,
+     * e.g. of a repository other than the working directory.
+     * @param objectsDir The objects directory of the repository.
+     * @param id The hash ID of the object.
+     * @return An ObjectContent containing the type and content, or empty if not found.
+     */
+    public static ObjectContent readObject(final Path objectsDir, final String id) {
+        if (id == null || id.isEmpty()) return ObjectContent.EMPTY;
+        sizeCaches();
+        ObjectContent obj = objectCache.get(id, k -> {
+            ObjectContent packed = PackManager.read(objectsDir, k);
+            if (packed != null) return packed;
+            ObjectContent loose = readObjectFile(objectFile(objectsDir, k));
+            // A missing object is not cached: it may be written later
+            return loose == ObjectContent.EMPTY ? null : loose;
+        });
+        return obj != null ? obj : ObjectContent.EMPTY;
+    }
+
+    /**
+     * Reads an object file given its path, e.g. from a repository other than the working directory.
+     * @param p The object file.
+     * @return An ObjectContent containing the type and content, or empty if it cannot be read.
+     */
+    public static ObjectContent readObjectFile(final Path p) {
+        try (InputStream in = openObjectInput(p)) {
+            String type = readHeaderLine(in);
+            String length = readHeaderLine(in);
+            if (type == null || length == null) return ObjectContent.EMPTY;
+
+            long size;
+            if (in instanceof InflaterInputStream) {
+                size = Long.parseLong(length);
+            } else {
+                // The length header is not trusted for plain files: format 1 objects recorded it in chars.
+                size = Files.size(p) - type.length() - length.length() - 2;
+            }
+            if (size < 0 || size > Integer.MAX_VALUE) return ObjectContent.EMPTY;
+            byte[] content = in.readNBytes((int) size);
+            return new ObjectContent(type, content);
+        } catch (IOException | NumberFormatException e) {
+            return ObjectContent.EMPTY;
         }
+    }
 
-        if (obj.isEmpty()) return new ObjectContent("", "");
+    /**
+     * Reads only the header of an object, without reading (or inflating) its content.
+     * @param id The hash ID of the object.
+     * @return The object header, or null if the object does not exist or is malformed.
+     */
+    public static ObjectHeader readObjectHeader(final String id) {
+        return readObjectHeader(Paths.get(OBJECTS_DIR), id);
+    }
 
-        int p1 = obj.indexOf('\n');
-        if (p1 == -1) return new ObjectContent("", "");
+    // Overload: read the header of an object in a given objects directory, packed or loose.
+    public static ObjectHeader readObjectHeader(final Path objectsDir, final String id) {
+        if (id == null || id.isEmpty()) return null;
+        sizeCaches();
+        ObjectContent cached = objectCache.get(id);
+        if (cached != null) return new ObjectHeader(cached.type(), cached.size());
+        ObjectHeader packed = PackManager.readHeader(objectsDir, id);
+        if (packed != null) return packed;
+        return readObjectHeader(objectFile(objectsDir, id));
+    }
 
-        int p2 = obj.indexOf('\n', p1 + 1);
-        if (p2 == -1) return new ObjectContent("", "");
+    // Overload: read the header of an object file given its path.
+    public static ObjectHeader readObjectHeader(final Path p) {
+        try (InputStream in = openObjectInput(p)) {
+            String type = readHeaderLine(in);
+            String length = readHeaderLine(in);
+            if (type == null || length == null) return null;
+            return new ObjectHeader(type, Long.parseLong(length));
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
 
-        String type = obj.substring(0, p1);
-        // The length header is discarded, only the type and content are returned.
-        String content = obj.substring(p2 + 1);
+    /**
+     * Opens a stream over the content of an object (excluding its header).
+     * @param id The hash ID of the object.
+     * @return The content stream; the caller must close it.
+     * @throws IOException If the object does not exist or its header is malformed.
+     */
+    public static InputStream openObjectStream(final String id) throws IOException {
+        ObjectContent packed = PackManager.read(Paths.get(OBJECTS_DIR), id);
+        if (packed != null) return packed.stream();
 
-        return new ObjectContent(type, content);
+        InputStream in = openObjectInput(objectFile(id));
+        if (readHeaderLine(in) == null || readHeaderLine(in) == null) {
+            in.close();
+            throw new IOException("malformed object " + id);
+        }
+        return in;
+    }
+
+    // Header lines are short ASCII, so they are read byte by byte without a decoder.
+    private static String readHeaderLine(final InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(16);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') return sb.toString();
+            if (sb.length() > 32) return null;
+            sb.append((char) b);
+        }
+        return null;
     }
 
     /**
@@ -96,7 +558,70 @@ public class ObjectManager {
      * @return The hash ID of the new blob object.
      */
     public static String hashBlobFromFile(final String filePath) throws IOException {
-        String content = Utils.readFileStr(filePath);
-        return hashAndStoreObject("blob", content);
+        // Stream the file through the digest first: most files are already stored,
+        // and those never need their content held in memory.
+        Path p = Paths.get(filePath);
+        String id;
+        try {
+            id = hashFile(p);
+        } catch (NoSuchFileException e) {
+            return hashAndStoreObject("blob", new byte[0]);
+        }
+        if (hasObject(id)) return id;
+
+        return storeBlobFromFile(p);
+    }
+
+    /**
+     * Computes the blob ID of a file without storing it, streaming the file through the digest.
+     * @param p The path to the file.
+     * @return The hash ID the file would be stored under.
+     */
+    public static String hashFile(final Path p) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream in = Files.newInputStream(p)) {
+            md.update(header("blob", Files.size(p)));
+            byte[] buf = new byte[IO_BUFFER];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+        return Utils.bytesToHex(md.digest());
+    }
+
+    /**
+     * Copies a file into the object store in one streaming pass, hashing what is written.
+     * The ID is taken from the bytes actually copied, so a file modified in the meantime
+     * can never be stored under the wrong ID.
+     */
+    private static String storeBlobFromFile(final Path p) throws IOException {
+        Path dir = Paths.get(OBJECTS_DIR);
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "tmp_obj_", "");
+        try {
+            long size = Files.size(p);
+            MessageDigest md = newDigest();
+            long copied;
+            // The digest sees the uncompressed bytes, compression happens underneath it
+            try (InputStream in = Files.newInputStream(p);
+                 OutputStream out = new DigestOutputStream(openObjectOutput(tmp), md)) {
+                out.write(header("blob", size));
+                copied = in.transferTo(out);
+            }
+            if (copied != size) {
+                throw new IOException("file changed while it was being stored: " + p);
+            }
+
+            String id = Utils.bytesToHex(md.digest());
+            if (!hasObject(id)) {
+                Path path = objectPath(dir, id);
+                Files.createDirectories(path.getParent());
+                Utils.replaceFile(tmp, path);
+            }
+            return id;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package core;
+
+/**
+ * The reporter commands write to. It is a {@link CliReporter} on standard output unless
+ * another one is installed, as the GUI does.
+ */
+public class Output {
+
+    private static volatile Reporter reporter = new CliReporter(System.out, System.err);
+
+    public static Reporter get() {
+        return reporter;
+    }
+
+    /**
+     * Installs a reporter, flushing the previous one first.
+     */
+    public static void set(final Reporter r) {
+        reporter.flush();
+        reporter = r;
+    }
+
+    public static void println(final String line) {
+        reporter.println(line);
+    }
+
+    public static void println() {
+        reporter.println("");
+    }
+
+    public static void print(final String text) {
+        reporter.print(text);
+    }
+
+    public static void error(final String line) {
+        reporter.error(line);
+    }
+
+    public static void flush() {
+        reporter.flush();
+    }
+}
@@ -0,0 +1,171 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Copy/insert deltas between two versions of an object, used for delta entries in packs.
+ *
+ * Layout:
+ * <pre>
+ *   baseSize:varint | resultSize:varint | ops...
+ *   copy    0x80 | offset:varint | length:varint   (bytes taken from the base)
+ *   insert  n (1..127) | n literal bytes
+ * </pre>
+ * The encoder indexes the base in BLOCK-byte blocks and slides a rolling hash over the
+ * target, so it runs in time linear in the two sizes and needs no per-position index.
+ */
+public final class PackDelta {
+
+    private static final int BLOCK = 16;
+    private static final int MAX_INSERT = 127;
+    private static final int COPY = 0x80;
+    private static final int MAX_CANDIDATES = 8;
+    private static final int MULT = 0x01000193;
+
+    private PackDelta() {}
+
+    /**
+     * Encodes the target as a delta against the base.
+     * @param maxSize Give up once the delta grows past this many bytes.
+     * @return The delta, or null if there is no delta of at most maxSize bytes.
+     */
+    public static byte[] encode(final byte[] base, final byte[] target, final int maxSize) {
+        if (base.length < BLOCK || target.length < BLOCK || maxSize <= 0) return null;
+
+        // Chained hash table of the base blocks: head[bucket] -> block, next[block] -> block
+        int blocks = base.length / BLOCK;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, blocks * 2 - 1));
+        int mask = (1 << bits) - 1;
+        int[] head = new int[1 << bits];
+        int[] next = new int[blocks];
+        Arrays.fill(head, -1);
+        for (int b = 0; b < blocks; b++) {
+            int bucket = hash(base, b * BLOCK) & mask;
+            next[b] = head[bucket];
+            head[bucket] = b;
+        }
+
+        int pow = 1;
+        for (int k = 1; k < BLOCK; k++) pow *= MULT;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, target.length) + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int literalStart = 0;
+        int i = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            int bestLen = 0;
+            int bestOff = 0;
+            int tries = 0;
+            for (int b = head[h & mask]; b >= 0 && tries < MAX_CANDIDATES; b = next[b], tries++) {
+                int off = b * BLOCK;
+                int len = 0;
+                while (off + len < base.length && i + len < target.length && base[off + len] == target[i + len]) len++;
+                if (len > bestLen) {
+                    bestLen = len;
+                    bestOff = off;
+                }
+            }
+
+            if (bestLen >= BLOCK) {
+                // Grow the match backwards over bytes that would otherwise be inserted
+                int start = i;
+                while (start > literalStart && bestOff > 0 && base[bestOff - 1] == target[start - 1]) {
+                    start--;
+                    bestOff--;
+                    bestLen++;
+                }
+                writeInsert(out, target, literalStart, start);
+                out.write(COPY);
+                writeVarint(out, bestOff);
+                writeVarint(out, bestLen);
+                if (out.size() > maxSize) return null;
+
+                i = start + bestLen;
+                literalStart = i;
+                if (i + BLOCK <= target.length) h = hash(target, i);
+            } else {
+                if (i + BLOCK < target.length) {
+                    h = (h - target[i] * pow) * MULT + target[i + BLOCK];
+                }
+                i++;
+                if (i - literalStart > maxSize) return null;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.size() > maxSize ? null : out.toByteArray();
+    }
+
+    /**
+     * Rebuilds the target from its base and a delta.
+     * @throws IOException If the delta does not fit the base or is malformed.
+     */
+    public static byte[] apply(final byte[] base, final byte[] delta) throws IOException {
+        int[] cursor = {0};
+        int baseSize = readVarint(delta, cursor);
+        int resultSize = readVarint(delta, cursor);
+        if (baseSize != base.length) throw new IOException("delta base size mismatch");
+
+        byte[] out = new byte[resultSize];
+        int n = 0;
+        while (cursor[0] < delta.length) {
+            int op = delta[cursor[0]++] & 0xFF;
+            if (op == COPY) {
+                int off = readVarint(delta, cursor);
+                int len = readVarint(delta, cursor);
+                if (off < 0 || len < 0 || off > base.length - len || len > resultSize - n) {
+                    throw new IOException("delta copy out of bounds");
+                }
+                System.arraycopy(base, off, out, n, len);
+                n += len;
+            } else if (op > 0 && op <= MAX_INSERT) {
+                if (op > delta.length - cursor[0] || op > resultSize - n) throw new IOException("delta insert out of bounds");
+                System.arraycopy(delta, cursor[0], out, n, op);
+                cursor[0] += op;
+                n += op;
+            } else {
+                throw new IOException("bad delta opcode " + op);
+            }
+        }
+        if (n != resultSize) throw new IOException("delta result size mismatch");
+        return out;
+    }
+
+    private static int hash(final byte[] data, final int off) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++) h = h * MULT + data[off + k];
+        return h;
+    }
+
+    private static void writeInsert(final ByteArrayOutputStream out, final byte[] data, int from, final int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(final byte[] data, final int[] cursor) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (cursor[0] >= data.length) throw new IOException("delta truncated");
+            byte b = data[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("delta varint too long");
+    }
+}
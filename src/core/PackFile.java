@@ -0,0 +1,578 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only, memory-mapped view of a packfile and its index in .smk/objects/pack.
+ * A pack stores many objects back to back; its .idx lists their IDs in ascending order behind
+ * a fanout table over the first ID byte, so finding an object is one table read plus a binary
+ * search over a small slice of the mapped index, and reading it is a single mapped access.
+ *
+ * Pack layout (integers are big-endian):
+ * <pre>
+ *   header   "SMKP" | version:int
+ *   objects  { kind:byte | size:varint | [baseDistance:varint | deltaSize:varint] | storedSize:varint | data:storedSize }...
+ *            (kind = type code, | FLAG_DELTA for a delta entry, | FLAG_DEFLATED when data is zlib-compressed)
+ *   trailer  sha256 over everything before it (also the pack's name)
+ * </pre>
+ * Index layout:
+ * <pre>
+ *   header   "SMKX" | version:int | objects:int
+ *   fanout   256 x int: number of objects whose first ID byte is at most i
+ *   ids      objects x ID_BYTES, ascending
+ *   offsets  objects x int: position of the object in the pack, in ID order
+ *   trailer  pack sha256 | crc32c:int over everything before it
+ * </pre>
+ * A delta entry stores a {@link PackDelta} against an earlier entry of the same pack,
+ * baseDistance bytes before it; size is always that of the reconstructed object.
+ * Reconstructed bases are kept in a small per-pack cache, as reading one version of
+ * a file usually means reading its neighbours in the same chain too.
+ */
+public final class PackFile {
+
+    public static final int ID_BYTES = 32;
+
+    private static final byte[] PACK_MAGIC = {'S', 'M', 'K', 'P'};
+    private static final byte[] IDX_MAGIC = {'S', 'M', 'K', 'X'};
+    private static final int VERSION = 1;
+    private static final int PACK_HEADER_SIZE = 8;
+    private static final int IDX_HEADER_SIZE = 12;
+    private static final int FANOUT_SIZE = 256 * 4;
+
+    private static final int TYPE_MASK = 0x0F;
+    private static final int FLAG_DELTA = 0x40;
+    private static final int FLAG_DEFLATED = 0x80;
+    private static final long BASE_CACHE_LIMIT = 16L << 20;
+    private static final String[] TYPE_NAMES = {null, "commit", "tree", "blob"};
+
+
+    private final Path packPath;
+    private final Path idxPath;
+    private final ByteBuffer pack;
+    private final ByteBuffer idx;
+    private final int count;
+    private final int idsStart;
+    private final int offsetsStart;
+
+    // Reconstructed delta bases by pack offset, least recently used first
+    private final LinkedHashMap<Integer, byte[]> baseCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long baseCacheBytes;
+
+    // Header of the entry at a pack offset
+    private record Entry(int offset, int kind, int size, int baseOffset, int deltaSize, int dataStart, int stored) {
+        boolean isDelta() {
+            return (kind & FLAG_DELTA) != 0;
+        }
+    }
+
+    private PackFile(Path packPath, Path idxPath, ByteBuffer pack, ByteBuffer idx, int count) {
+        this.packPath = packPath;
+        this.idxPath = idxPath;
+        this.pack = pack;
+        this.idx = idx;
+        this.count = count;
+        this.idsStart = IDX_HEADER_SIZE + FANOUT_SIZE;
+        this.offsetsStart = idsStart + count * ID_BYTES;
+    }
+
+    /**
+     * Maps a pack index and its pack, validating both headers and the index checksum.
+     * The pack content itself is not re-hashed here; that would read the whole pack.
+     * @param idxPath The .idx file; the pack is the .pack file next to it.
+     * @return The pack view, or null if either file is missing.
+     * @throws IOException If either file is truncated or corrupt.
+     */
+    public static PackFile open(final Path idxPath) throws IOException {
+        String name = idxPath.getFileName().toString();
+        Path packPath = idxPath.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+
+        ByteBuffer idx = Utils.mapReadOnly(idxPath);
+        ByteBuffer pack = Utils.mapReadOnly(packPath);
+        if (idx == null || pack == null) return null;
+
+        int len = idx.limit();
+        if (len < IDX_HEADER_SIZE + FANOUT_SIZE + ID_BYTES + 4 || !hasMagic(idx, IDX_MAGIC)) {
+            throw new IOException("pack index " + name + " is not a pack index");
+        }
+        int version = idx.getInt(4);
+        if (version != VERSION) throw new IOException("unsupported pack index version " + version);
+        int count = idx.getInt(8);
+        if (count < 0 || (long) IDX_HEADER_SIZE + FANOUT_SIZE + (long) count * (ID_BYTES + 4) + ID_BYTES + 4 != len) {
+            throw new IOException("pack index " + name + " truncated");
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(idx.duplicate().position(0).limit(len - 4));
+        if ((int) crc.getValue() != idx.getInt(len - 4)) {
+            throw new IOException("pack index " + name + " corrupt: checksum mismatch");
+        }
+
+        // The index records which pack it was built for
+        int packLen = pack.limit();
+        if (packLen < PACK_HEADER_SIZE + ID_BYTES || !hasMagic(pack, PACK_MAGIC) || pack.getInt(4) != VERSION
+                || pack.slice(packLen - ID_BYTES, ID_BYTES).compareTo(idx.slice(len - 4 - ID_BYTES, ID_BYTES)) != 0) {
+            throw new IOException("pack " + packPath.getFileName() + " does not match its index");
+        }
+
+        return new PackFile(packPath, idxPath, pack, idx, count);
+    }
+
+    private static boolean hasMagic(final ByteBuffer buf, final byte[] magic) {
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(i) != magic[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The number of objects in the pack.
+     */
+    public int size() {
+        return count;
+    }
+
+    public Path packPath() {
+        return packPath;
+    }
+
+    public Path idxPath() {
+        return idxPath;
+    }
+
+    /**
+     * The size of the pack file in bytes.
+     */
+    public long packSize() {
+        return pack.limit();
+    }
+
+    /**
+     * Looks up a raw object ID using the fanout table and a binary search over its slice.
+     * @return The position of the object in ID order, or -1 if it is not in this pack.
+     */
+    public int find(final byte[] id) {
+        int first = id[0] & 0xFF;
+        int lo = first == 0 ? 0 : idx.getInt(IDX_HEADER_SIZE + (first - 1) * 4);
+        int hi = idx.getInt(IDX_HEADER_SIZE + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(mid, id);
+            if (cmp == 0) return mid;
+            if (cmp < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the hex ID of the object at a position.
+     */
+    public String id(final int i) {
+        byte[] raw = new byte[ID_BYTES];
+        idx.get(idsStart + i * ID_BYTES, raw);
+        return Utils.bytesToHex(raw);
+    }
+
+    /**
+     * Reads the type and size of the object at a position without touching its data.
+     */
+    public ObjectManager.ObjectHeader header(final int i) throws IOException {
+        int[] cursor = {offset(i)};
+        int kind = pack.get(cursor[0]++) & 0xFF;
+        return new ObjectManager.ObjectHeader(typeName(kind), readVarint(pack, cursor));
+    }
+
+    /**
+     * Reads the object at a position, inflating it and applying deltas as needed.
+     */
+    public ObjectManager.ObjectContent read(final int i) throws IOException {
+        Entry e = entryAt(offset(i));
+        return new ObjectManager.ObjectContent(typeName(e.kind()), dataAt(e));
+    }
+
+    // Walks down the delta chain to a full object or a cached base, then applies the deltas back up.
+    private byte[] dataAt(final Entry target) throws IOException {
+        Deque<Entry> deltas = new ArrayDeque<>();
+        Entry e = target;
+        byte[] data;
+        while (true) {
+            data = cachedBase(e.offset());
+            if (data != null) break;
+            if (!e.isDelta()) {
+                data = payload(e, e.size());
+                break;
+            }
+            deltas.push(e);
+            e = entryAt(e.baseOffset());
+        }
+
+        int basePos = e.offset();
+        while (!deltas.isEmpty()) {
+            Entry d = deltas.pop();
+            cacheBase(basePos, data);
+            data = PackDelta.apply(data, payload(d, d.deltaSize()));
+            if (data.length != d.size()) throw new IOException("pack delta result size mismatch");
+            basePos = d.offset();
+        }
+        return data;
+    }
+
+    private Entry entryAt(final int off) throws IOException {
+        if (off < PACK_HEADER_SIZE || off >= pack.limit() - ID_BYTES) throw new IOException("pack entry out of bounds");
+        int[] cursor = {off};
+        int kind = pack.get(cursor[0]++) & 0xFF;
+        int size = readVarint(pack, cursor);
+        int baseOffset = -1;
+        int deltaSize = 0;
+        if ((kind & FLAG_DELTA) != 0) {
+            int distance = readVarint(pack, cursor);
+            // Bases always come before their deltas, which also rules out cycles
+            if (distance <= 0 || distance > off - PACK_HEADER_SIZE) throw new IOException("bad delta base in pack");
+            baseOffset = off - distance;
+            deltaSize = readVarint(pack, cursor);
+        }
+        int stored = readVarint(pack, cursor);
+        if (stored < 0 || cursor[0] + stored > pack.limit() - ID_BYTES) throw new IOException("pack entry out of bounds");
+        return new Entry(off, kind, size, baseOffset, deltaSize, cursor[0], stored);
+    }
+
+    // The stored bytes of an entry (the object, or its delta), inflated to their raw length.
+    private byte[] payload(final Entry e, final int rawSize) throws IOException {
+        byte[] data = new byte[rawSize];
+        if ((e.kind() & FLAG_DEFLATED) == 0) {
+            if (e.stored() != rawSize) throw new IOException("pack entry size mismatch");
+            pack.get(e.dataStart(), data);
+        } else {
+            inflate(pack.slice(e.dataStart(), e.stored()), data);
+        }
+        return data;
+    }
+
+    private synchronized byte[] cachedBase(final int pos) {
+        return baseCache.get(pos);
+    }
+
+    private synchronized void cacheBase(final int pos, final byte[] data) {
+        if (data.length > BASE_CACHE_LIMIT / 4 || baseCache.containsKey(pos)) return;
+        baseCache.put(pos, data);
+        baseCacheBytes += data.length;
+        Iterator<byte[]> it = baseCache.values().iterator();
+        while (baseCacheBytes > BASE_CACHE_LIMIT && it.hasNext()) {
+            baseCacheBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private int offset(final int i) {
+        return idx.getInt(offsetsStart + i * 4);
+    }
+
+    private int compareId(final int i, final byte[] id) {
+        int base = idsStart + i * ID_BYTES;
+        for (int k = 0; k < ID_BYTES; k++) {
+            int a = idx.get(base + k) & 0xFF;
+            int b = id[k] & 0xFF;
+            if (a != b) return a - b;
+        }
+        return 0;
+    }
+
+    private static String typeName(final int kind) throws IOException {
+        int code = kind & TYPE_MASK;
+        if (code <= 0 || code >= TYPE_NAMES.length) throw new IOException("unknown pack entry type " + code);
+        return TYPE_NAMES[code];
+    }
+
+    private static int typeCode(final String type) {
+        for (int code = 1; code < TYPE_NAMES.length; code++) {
+            if (TYPE_NAMES[code].equals(type)) return code;
+        }
+        return -1;
+    }
+
+    // The mapped data is inflated straight into the result, with no intermediate copy.
+    private static void inflate(final ByteBuffer in, final byte[] out) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in);
+            int n = 0;
+            while (n < out.length) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                n += r;
+            }
+            if (n != out.length) throw new IOException("pack entry corrupt: short data");
+        } catch (DataFormatException e) {
+            throw new IOException("pack entry corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int readVarint(final ByteBuffer buf, final int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buf.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    private static void writeVarint(final OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Streams objects into a new pack, then writes its index and moves both into place
+     * under {@code pack-<checksum>}. Readers only discover a pack through its .idx, which
+     * is renamed last, so a half-written pack is never visible.
+     */
+    public static final class Writer implements Closeable {
+
+        // Objects below this size gain nothing from a delta; above it they are too costly to keep in the window
+        private static final int MIN_DELTA_SIZE = 64;
+        private static final int MAX_DELTA_SIZE = 64 << 20;
+
+        private record Entry(byte[] id, int offset) {}
+
+        // A recently written object that later ones may be stored as deltas against
+        private record Candidate(String type, byte[] data, int offset, int depth) {}
+
+        private final Path dir;
+        private final int level;
+        private final int windowSize;
+        private final long windowMemory;
+        private final int maxDepth;
+        private final Deque<Candidate> window = new ArrayDeque<>();
+        private long windowBytes;
+        private final Path tmp;
+        private final MessageDigest digest;
+        private final OutputStream out;
+        private final List<Entry> entries = new ArrayList<>();
+        private final Set<String> added = new HashSet<>();
+        private long written;
+        private boolean done;
+
+        /**
+         * @param dir The pack directory.
+         * @param level The zlib level for object data, or 0 to store it uncompressed.
+         * @param windowSize How many of the previously added objects to try as delta bases, 0 for no deltas.
+         * @param windowMemory How many bytes of object data those may hold together; the oldest go first.
+         * @param maxDepth The longest delta chain allowed; reading an object applies up to this many deltas.
+         */
+        public Writer(final Path dir, final int level, final int windowSize, final long windowMemory, final int maxDepth)
+                throws IOException {
+            this.dir = dir;
+            this.level = Math.min(level, Deflater.BEST_COMPRESSION);
+            this.windowSize = windowSize;
+            this.windowMemory = windowMemory;
+            this.maxDepth = maxDepth;
+            Files.createDirectories(dir);
+            this.tmp = Files.createTempFile(dir, "tmp_pack_", "");
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            this.out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024), digest);
+            out.write(PACK_MAGIC);
+            out.write(ByteBuffer.allocate(4).putInt(VERSION).array());
+            written = PACK_HEADER_SIZE;
+        }
+
+        /**
+         * The number of pack bytes written so far.
+         */
+        public long bytesWritten() {
+            return written;
+        }
+
+        public int objectCount() {
+            return entries.size();
+        }
+
+        /**
+         * Appends an object to the pack, as a delta against one of the objects added just
+         * before it when that is less than half its size. Callers get the best deltas by
+         * adding similar objects (same type, same file name) next to each other.
+         * @return false if the object cannot be packed (an ID that is not a SHA-256 hex string,
+         *         or an unknown type) or is already in this pack.
+         */
+        public boolean add(final String id, final String type, final byte[] data) throws IOException {
+            byte[] raw = Utils.hexToBytes(id);
+            int code = typeCode(type);
+            if (raw == null || raw.length != ID_BYTES || code < 0 || !added.add(id)) return false;
+
+            Candidate base = null;
+            byte[] delta = null;
+            boolean deltify = windowSize > 0 && data.length >= MIN_DELTA_SIZE && data.length <= MAX_DELTA_SIZE;
+            if (deltify) {
+                int limit = data.length / 2;
+                for (Candidate c : window) {
+                    if (c.depth() >= maxDepth || !c.type().equals(type)) continue;
+                    byte[] d = PackDelta.encode(c.data(), data, limit - 1);
+                    if (d != null) {
+                        base = c;
+                        delta = d;
+                        limit = d.length;
+                    }
+                }
+            }
+
+            int kind = code;
+            byte[] payload = data;
+            if (delta != null) {
+                kind |= FLAG_DELTA;
+                payload = delta;
+            }
+            byte[] stored = payload;
+            if (level > 0) {
+                byte[] packed = deflate(payload, level);
+                // Incompressible data is kept as-is so reading it costs a plain copy
+                if (packed.length < payload.length) {
+                    stored = packed;
+                    kind |= FLAG_DEFLATED;
+                }
+            }
+            if (written + stored.length + 32 > Integer.MAX_VALUE - ID_BYTES) {
+                throw new IOException("pack would exceed 2 GiB");
+            }
+
+            int offset = (int) written;
+            entries.add(new Entry(raw, offset));
+            out.write(kind);
+            writeVarint(out, data.length);
+            written += 1 + varintSize(data.length);
+            if (base != null) {
+                writeVarint(out, offset - base.offset());
+                writeVarint(out, delta.length);
+                written += varintSize(offset - base.offset()) + varintSize(delta.length);
+            }
+            writeVarint(out, stored.length);
+            out.write(stored);
+            written += varintSize(stored.length) + stored.length;
+
+            // An object larger than the whole budget is only ever a delta, never a base
+            if (deltify && data.length <= windowMemory) {
+                window.addFirst(new Candidate(type, data, offset, base == null ? 0 : base.depth() + 1));
+                windowBytes += data.length;
+                while (window.size() > windowSize || windowBytes > windowMemory) {
+                    windowBytes -= window.removeLast().data().length;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Seals the pack and writes its index.
+         * @return The index file of the new pack, or null if no objects were added.
+         */
+        public Path finish() throws IOException {
+            done = true;
+            out.close();
+            if (entries.isEmpty()) {
+                Files.deleteIfExists(tmp);
+                return null;
+            }
+
+            byte[] checksum = digest.digest();
+            Files.write(tmp, checksum, StandardOpenOption.APPEND);
+
+            entries.sort((a, b) -> Arrays.compareUnsigned(a.id(), b.id()));
+            ByteBuffer idx = ByteBuffer.allocate(IDX_HEADER_SIZE + FANOUT_SIZE
+                    + entries.size() * (ID_BYTES + 4) + ID_BYTES + 4);
+            idx.put(IDX_MAGIC).putInt(VERSION).putInt(entries.size());
+            int[] fanout = new int[256];
+            for (Entry e : entries) fanout[e.id()[0] & 0xFF]++;
+            int total = 0;
+            for (int b = 0; b < 256; b++) {
+                total += fanout[b];
+                idx.putInt(total);
+            }
+            for (Entry e : entries) idx.put(e.id());
+            for (Entry e : entries) idx.putInt(e.offset());
+            idx.put(checksum);
+            CRC32C crc = new CRC32C();
+            crc.update(idx.array(), 0, idx.position());
+            idx.putInt((int) crc.getValue());
+
+            String name = "pack-" + Utils.bytesToHex(checksum);
+            Path packPath = dir.resolve(name + ".pack");
+            Path idxPath = dir.resolve(name + ".idx");
+            Path idxTmp = dir.resolve(name + ".idx.lock");
+            Files.write(idxTmp, idx.array());
+            Utils.replaceFile(tmp, packPath);
+            Utils.replaceFile(idxTmp, idxPath);
+            return idxPath;
+        }
+
+        /**
+         * Discards the pack unless it was finished.
+         */
+        @Override
+        public void close() throws IOException {
+            if (done) return;
+            done = true;
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private static byte[] deflate(final byte[] data, final int level) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] buf = new byte[Math.max(64, data.length / 2)];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                    n += deflater.deflate(buf, n, buf.length - n);
+                }
+                return Arrays.copyOf(buf, n);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static int varintSize(int value) {
+            int n = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                n++;
+            }
+            return n;
+        }
+    }
+}
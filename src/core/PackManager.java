@@ -0,0 +1,299 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds objects in the packfiles of a repository and packs loose objects ("smk repack").
+ * Open packs are cached per objects directory. The pack directory is only scanned again
+ * when an object is missing from every known pack and the directory changed since the last scan.
+ */
+public class PackManager {
+
+    private static final String OBJECTS_DIR = ".smk/objects";
+    private static final String COMPRESSION_KEY = "pack.compression";
+    private static final String LOOSE_COMPRESSION_KEY = "core.compression";
+    private static final String WINDOW_KEY = "pack.window";
+    private static final String DEPTH_KEY = "pack.depth";
+    private static final String WINDOW_MEMORY_KEY = "pack.windowMemoryMB";
+    private static final int DEFAULT_WINDOW = 10;
+    private static final int DEFAULT_DEPTH = 50;
+    private static final int DEFAULT_WINDOW_MEMORY_MB = 256;
+
+    // Packs are rolled over well below the 2 GiB a single mapping can cover
+    private static final long PACK_SIZE_LIMIT = 1L << 30;
+
+    private record PackList(List<PackFile> packs, FileTime scanned) {}
+
+    private record Located(PackFile pack, int pos) {}
+
+    // What writePacks orders objects by, so likely delta bases end up next to each other
+    private record PackOrder(String id, String type, String name, long size) {}
+
+    private static final Map<Path, PackList> cache = new ConcurrentHashMap<>();
+
+    public static Path packDir(final Path objectsDir) {
+        return objectsDir.resolve("pack");
+    }
+
+    /**
+     * Returns the open packs of a repository, scanning its pack directory on first use.
+     */
+    public static List<PackFile> packs(final Path objectsDir) {
+        return packList(key(objectsDir)).packs();
+    }
+
+    /**
+     * Forgets the cached packs so the next lookup scans the pack directory again.
+     */
+    public static void reload(final Path objectsDir) {
+        cache.remove(key(objectsDir));
+    }
+
+    /**
+     * Reads a packed object.
+     * @return The object, or null if it is not in any pack.
+     */
+    public static ObjectManager.ObjectContent read(final Path objectsDir, final String id) {
+        Located at = locate(objectsDir, id);
+        if (at == null) return null;
+        try {
+            return at.pack().read(at.pos());
+        } catch (IOException e) {
+            Output.error("Error reading object " + id + " from " + at.pack().packPath().getFileName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the header of a packed object without reading its data.
+     * @return The header, or null if the object is not in any pack.
+     */
+    public static ObjectManager.ObjectHeader readHeader(final Path objectsDir, final String id) {
+        Located at = locate(objectsDir, id);
+        if (at == null) return null;
+        try {
+            return at.pack().header(at.pos());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static boolean contains(final Path objectsDir, final String id) {
+        return locate(objectsDir, id) != null;
+    }
+
+    /**
+     * Lists the IDs of all packed objects.
+     */
+    public static List<String> listIds(final Path objectsDir) {
+        List<String> ids = new ArrayList<>();
+        for (PackFile pack : packs(objectsDir)) {
+            for (int i = 0; i < pack.size(); i++) ids.add(pack.id(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Writes objects into new packs, starting another pack whenever one grows past the size limit.
+     * Objects are grouped by type and file name and written largest first, which puts the
+     * versions of one file next to each other for delta compression ({@code pack.window},
+     * {@code pack.depth}). The delta bases kept in memory are limited to
+     * {@code pack.windowMemoryMB} (default 256) in total, on top of their count.
+     * File names come from the trees among the packed objects.
+     * Objects that cannot be read or packed are skipped.
+     * @param objectsDir The objects directory of the repository.
+     * @param ids The objects to pack.
+     * @return The index files of the packs written.
+     */
+    public static List<Path> writePacks(final Path objectsDir, final Collection<String> ids) throws IOException {
+        int level = ConfigManager.getInt(COMPRESSION_KEY, ConfigManager.getInt(LOOSE_COMPRESSION_KEY, 0));
+        int window = Math.max(0, ConfigManager.getInt(WINDOW_KEY, DEFAULT_WINDOW));
+        int depth = Math.max(0, ConfigManager.getInt(DEPTH_KEY, DEFAULT_DEPTH));
+        long windowMemory = Math.max(0, ConfigManager.getInt(WINDOW_MEMORY_KEY, DEFAULT_WINDOW_MEMORY_MB)) * (1L << 20);
+        Path dir = packDir(objectsDir);
+        List<Path> written = new ArrayList<>();
+
+        PackFile.Writer writer = null;
+        try {
+            for (PackOrder item : packOrder(objectsDir, ids)) {
+                ObjectManager.ObjectContent obj = ObjectManager.readObject(objectsDir, item.id());
+                if (obj.type().isEmpty()) continue;
+
+                if (writer != null && writer.bytesWritten() >= PACK_SIZE_LIMIT) {
+                    written.add(writer.finish());
+                    writer = null;
+                }
+                if (writer == null) writer = new PackFile.Writer(dir, level, window, windowMemory, depth);
+                writer.add(item.id(), obj.type(), obj.bytes());
+            }
+            if (writer != null) {
+                Path idx = writer.finish();
+                if (idx != null) written.add(idx);
+                writer = null;
+            }
+        } finally {
+            if (writer != null) writer.close();
+            reload(objectsDir);
+        }
+        return written;
+    }
+
+    /**
+     * Moves every loose object into a new pack and deletes the loose copies.
+     */
+    public static void repack() {
+        Path objectsDir = Paths.get(OBJECTS_DIR);
+        try {
+            List<String> loose = ObjectManager.listObjectIds(objectsDir);
+            if (loose.isEmpty()) {
+                Output.println("Nothing to pack.");
+                return;
+            }
+
+            List<Path> written = writePacks(objectsDir, loose);
+
+            // A loose copy only goes once a pack that holds the object is in place
+            int removed = 0;
+            for (String id : loose) {
+                if (contains(objectsDir, id)) {
+                    ObjectManager.deleteLooseObject(objectsDir, id);
+                    removed++;
+                }
+            }
+
+            Output.println("Packed " + removed + " objects into " + written.size()
+                    + (written.size() == 1 ? " pack" : " packs") + ".");
+            if (removed < loose.size()) {
+                Output.println((loose.size() - removed) + " objects could not be packed and were left loose.");
+            }
+        } catch (IOException e) {
+            Output.error("Error repacking objects: " + e.getMessage());
+        }
+    }
+
+    private static List<PackOrder> packOrder(final Path objectsDir, final Collection<String> ids) {
+        List<ObjectManager.ObjectHeader> headers = new ArrayList<>(ids.size());
+        Map<String, String> names = new HashMap<>();
+        for (String id : ids) {
+            ObjectManager.ObjectHeader header = ObjectManager.readObjectHeader(objectsDir, id);
+            headers.add(header);
+            if (header != null && "tree".equals(header.type())) {
+                collectNames(ObjectManager.readObject(objectsDir, id).content(), names);
+            }
+        }
+
+        List<PackOrder> order = new ArrayList<>(ids.size());
+        int i = 0;
+        for (String id : ids) {
+            ObjectManager.ObjectHeader header = headers.get(i++);
+            if (header == null) continue;
+            order.add(new PackOrder(id, header.type(), names.getOrDefault(id, ""), header.size()));
+        }
+        order.sort(Comparator.comparing(PackOrder::type)
+                .thenComparing(PackOrder::name)
+                .thenComparing(Comparator.comparingLong(PackOrder::size).reversed()));
+        return order;
+    }
+
+    // Records the file name each "path\thash" line of a tree gives its object.
+    private static void collectNames(final String tree, final Map<String, String> names) {
+        int start = 0;
+        while (start < tree.length()) {
+            int end = tree.indexOf('\n', start);
+            if (end == -1) end = tree.length();
+            int tab = tree.lastIndexOf('\t', end - 1);
+            if (tab >= start) {
+                String path = tree.substring(start, tab);
+                // Subtree entries end in "/": name them after their directory
+                int slash = path.lastIndexOf('/', path.length() - 2);
+                names.putIfAbsent(tree.substring(tab + 1, end), path.substring(slash + 1));
+            }
+            start = end + 1;
+        }
+    }
+
+    private static Path key(final Path objectsDir) {
+        return objectsDir.toAbsolutePath().normalize();
+    }
+
+    private static PackList packList(final Path key) {
+        PackList list = cache.get(key);
+        if (list == null) {
+            list = scan(key);
+            cache.put(key, list);
+        }
+        return list;
+    }
+
+    private static Located locate(final Path objectsDir, final String id) {
+        if (id == null) return null;
+        byte[] raw = Utils.hexToBytes(id);
+        if (raw == null || raw.length != PackFile.ID_BYTES) return null;
+
+        Path key = key(objectsDir);
+        PackList list = packList(key);
+        Located at = search(list, raw);
+        if (at == null && !Objects.equals(list.scanned(), lastModified(packDir(key)))) {
+            // Another process may have written a pack since we looked
+            list = scan(key);
+            cache.put(key, list);
+            at = search(list, raw);
+        }
+        return at;
+    }
+
+    private static Located search(final PackList list, final byte[] raw) {
+        for (PackFile pack : list.packs()) {
+            int pos = pack.find(raw);
+            if (pos >= 0) return new Located(pack, pos);
+        }
+        return null;
+    }
+
+    private static PackList scan(final Path objectsDir) {
+        Path dir = packDir(objectsDir);
+        FileTime scanned = lastModified(dir);
+        List<PackFile> packs = new ArrayList<>();
+        if (scanned == null) return new PackList(packs, null);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "pack-*.idx")) {
+            for (Path idx : stream) {
+                try {
+                    PackFile pack = PackFile.open(idx);
+                    if (pack != null) packs.add(pack);
+                } catch (IOException e) {
+                    Output.error("Error opening pack " + idx.getFileName() + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Output.error("Error listing packs: " + e.getMessage());
+        }
+        // Larger packs first: they are the likeliest to hold what is looked up
+        packs.sort((a, b) -> Integer.compare(b.size(), a.size()));
+        return new PackList(List.copyOf(packs), scanned);
+    }
+
+    private static FileTime lastModified(final Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
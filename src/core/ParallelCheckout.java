@@ -0,0 +1,107 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Writes blobs out to the working tree on a pool of worker threads, for checkout, merge and revert.
+ *
+ * The directories needed are created first, parents before children, on the calling thread, so
+ * workers never race to create the same directory. {@code core.threads} workers (default: one per
+ * core) then read the blobs and write the files. Results are handed back in path order, so errors
+ * are reported in the same order whatever the number of workers.
+ */
+public class ParallelCheckout {
+
+    private static final String THREADS_KEY = "core.threads";
+
+    /**
+     * The outcome for one file: the stat data of the file written, or the error that prevented writing it.
+     * Both are null when the object is not a blob and was skipped.
+     */
+    public record Result(String path, FileStat stat, IOException error) {}
+
+    /**
+     * Writes the given files.
+     * @param files Path to blob hash, iterated in the order results should be delivered.
+     * @param handler Receives one result per path, in order, on the calling thread.
+     */
+    public static void writeFiles(final Map<String, String> files, final Consumer<Result> handler) {
+        if (files.isEmpty()) return;
+        createDirectories(files.keySet());
+
+        int threads = Math.max(1, Math.min(files.size(),
+                ConfigManager.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors())));
+        if (threads == 1) {
+            for (Map.Entry<String, String> kv : files.entrySet()) {
+                handler.accept(write(kv.getKey(), kv.getValue()));
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<String> paths = new ArrayList<>(files.size());
+        List<Future<Result>> results = new ArrayList<>(files.size());
+        try {
+            for (Map.Entry<String, String> kv : files.entrySet()) {
+                paths.add(kv.getKey());
+                results.add(pool.submit(() -> write(kv.getKey(), kv.getValue())));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                handler.accept(await(results.get(i), paths.get(i)));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Sorted, so every directory is created after its parent; a failure shows up again when its files are written.
+    private static void createDirectories(final Iterable<String> paths) {
+        TreeSet<Path> dirs = new TreeSet<>();
+        for (String path : paths) {
+            Path parent = Paths.get(path).getParent();
+            if (parent != null) dirs.add(parent);
+        }
+        for (Path dir : dirs) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Result write(final String path, final String hash) {
+        ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(hash);
+        if (!"blob".equals(obj.type())) return new Result(path, null, null);
+
+        Path p = Paths.get(path);
+        try {
+            Utils.writeFile(p, obj.bytes());
+            return new Result(path, FileStat.of(p), null);
+        } catch (IOException e) {
+            return new Result(path, null, e);
+        }
+    }
+
+    private static Result await(final Future<Result> f, final String path) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(path, null, new IOException("interrupted"));
+        } catch (ExecutionException e) {
+            return new Result(path, null, new IOException(e.getCause()));
+        }
+    }
+}
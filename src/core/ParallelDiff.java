@@ -0,0 +1,86 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Computes per-file diffs on a pool of worker threads and writes them out in input order.
+ *
+ * {@code core.threads} workers (default: one per core) render the files; the calling thread
+ * hands each result to the reporter as soon as it and everything before it are done. Only a
+ * bounded window of files is in flight at once, so a slow file holds back at most that many
+ * finished results, and the output of a huge diff is never kept in memory as a whole.
+ */
+public class ParallelDiff {
+
+    private static final String THREADS_KEY = "core.threads";
+    // Files in flight per worker: enough to keep workers busy behind one slow file
+    private static final int WINDOW_PER_THREAD = 8;
+
+    /**
+     * Renders every item and writes the results, in order, to the current {@link Output} reporter.
+     * @param items The items to render, in output order.
+     * @param render Produces the text for one item, or null if the item has nothing to show.
+     * @return The number of items that produced text.
+     */
+    public static <T> int render(final List<T> items, final Function<T, String> render) {
+        return render(items, render, Output.get());
+    }
+
+    /**
+     * Renders every item and writes the results, in order, to the given reporter.
+     * @return The number of items that produced text.
+     */
+    public static <T> int render(final List<T> items, final Function<T, String> render, final Reporter out) {
+        int threads = Math.max(1, Math.min(items.size(),
+                ConfigManager.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors())));
+        int shown = 0;
+        if (threads == 1) {
+            for (T item : items) {
+                if (write(render.apply(item), out)) shown++;
+            }
+            return shown;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<String>> window = new ArrayDeque<>();
+            int limit = threads * WINDOW_PER_THREAD;
+            int next = 0;
+            while (next < items.size() || !window.isEmpty()) {
+                while (window.size() < limit && next < items.size()) {
+                    T item = items.get(next++);
+                    window.add(pool.submit(() -> render.apply(item)));
+                }
+                if (write(await(window.poll()), out)) shown++;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return shown;
+    }
+
+    private static boolean write(final String text, final Reporter out) {
+        if (text == null) return false;
+        out.print(text);
+        return true;
+    }
+
+    private static String await(final Future<String> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Output.error("Error computing diff: " + e.getCause());
+            return null;
+        }
+    }
+}
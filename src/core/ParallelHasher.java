@@ -0,0 +1,116 @@
+package core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Hashes and stores working files on a pool of worker threads, for "smk add .".
+ *
+ * Files whose stat data matches the index are resolved on the calling thread without being
+ * opened; the rest are read, hashed and stored by {@code core.threads} workers (default: one
+ * per core). Before a file is handed to a worker its size is taken from a budget of bytes in
+ * flight ({@code add.maxInFlightMB}, default 256), so a run of huge files is read a few at a
+ * time rather than all at once. Results are handed back in input order, which keeps the index
+ * update and the output identical to a sequential run. With a file system monitor running, files
+ * it knows to be unchanged since they were staged are not even stat'ed.
+ */
+public class ParallelHasher {
+
+    private static final String THREADS_KEY = "core.threads";
+    private static final String IN_FLIGHT_KEY = "add.maxInFlightMB";
+    private static final int DEFAULT_IN_FLIGHT_MB = 256;
+
+    /**
+     * The outcome for one file: its hash, or the error that prevented hashing it.
+     */
+    public record Result(String path, FileStat stat, String hash, IOException error) {}
+
+    /**
+     * Hashes (and stores) the given files.
+     * @param paths The files to hash, in the order results should be delivered.
+     * @param index The index whose stat data lets unchanged files be skipped.
+     * @param handler Receives one result per path, in order, on the calling thread.
+     */
+    public static void hashFiles(final List<String> paths, final IndexFile index, final Consumer<Result> handler) {
+        int threads = Math.max(1, ConfigManager.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+        // Permits are KiB, so the budget fits a Semaphore
+        int budget = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, ConfigManager.getInt(IN_FLIGHT_KEY, DEFAULT_IN_FLIGHT_MB)) * 1024L);
+        Semaphore inFlight = new Semaphore(budget, true);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> results = new ArrayList<>(paths.size());
+        long token = FsMonitor.token();
+        try {
+            for (String path : paths) {
+                int i = index.find(path);
+                // Unchanged since the monitor last saw it staged: no need to stat it
+                String known = FsMonitor.knownHash(path);
+                if (known != null && i >= 0 && index.hashEquals(i, known) && index.stat(i) != null) {
+                    results.add(CompletableFuture.completedFuture(new Result(path, index.stat(i), known, null)));
+                    continue;
+                }
+
+                FileStat st;
+                try {
+                    st = FileStat.of(path);
+                } catch (IOException e) {
+                    results.add(CompletableFuture.completedFuture(new Result(path, null, null, e)));
+                    continue;
+                }
+                String clean = i >= 0 ? index.cleanHash(i, st) : null;
+                if (clean != null) {
+                    results.add(CompletableFuture.completedFuture(new Result(path, st, clean, null)));
+                    continue;
+                }
+
+                // Blocks while the workers are already reading as much as the budget allows
+                int permits = permitsFor(st, budget);
+                inFlight.acquireUninterruptibly(permits);
+                results.add(pool.submit(() -> {
+                    try {
+                        return new Result(path, st, ObjectManager.hashBlobFromFile(path), null);
+                    } catch (IOException e) {
+                        return new Result(path, st, null, e);
+                    } finally {
+                        inFlight.release(permits);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                Result r = await(results.get(i), paths.get(i));
+                if (r.error() == null) FsMonitor.remember(r.path(), r.hash(), token);
+                handler.accept(r);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // A file larger than the whole budget takes all of it, and so is read on its own.
+    private static int permitsFor(final FileStat st, final int budget) {
+        if (st == null) return 1;
+        long kib = (st.size() + 1023) / 1024;
+        return (int) Math.max(1, Math.min(budget, kib));
+    }
+
+    private static Result await(final Future<Result> f, final String path) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(path, null, null, new IOException("interrupted"));
+        } catch (ExecutionException e) {
+            return new Result(path, null, null, new IOException(e.getCause()));
+        }
+    }
+}
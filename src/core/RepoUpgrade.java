@@ -0,0 +1,249 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Upgrades an existing repository to the current on-disk format ("smk upgrade").
+ *
+ * Format 1 used 32-bit String.hashCode object IDs; format 2 uses SHA-256. Since every
+ * tree and commit embeds the IDs it points to, upgrading rewrites the whole object graph
+ * bottom-up (blobs, then the trees and commits referencing them), then refs and the index.
+ *
+ * Independently of the format version, loose objects still in the flat
+ * {@code objects/<id>} layout are moved into fan-out directories.
+ */
+public class RepoUpgrade {
+
+    public static final int CURRENT_FORMAT = 2;
+
+    private static final String SMK_DIR = ".smk";
+    private static final String OBJECTS_DIR = SMK_DIR + "/objects";
+    private static final String FORMAT_KEY = "core.format";
+
+    /**
+     * The format version recorded in .smk/config; repositories without one predate versioning.
+     */
+    public static int repositoryFormat() {
+        return ConfigManager.getInt(FORMAT_KEY, 1);
+    }
+
+    /**
+     * Records that a freshly created repository uses the current format.
+     */
+    public static void markCurrent() {
+        ConfigManager.set(FORMAT_KEY, String.valueOf(CURRENT_FORMAT));
+    }
+
+    public static boolean needsUpgrade() {
+        return Files.exists(Paths.get(SMK_DIR)) && repositoryFormat() < CURRENT_FORMAT;
+    }
+
+    public static void upgrade() {
+        if (!Files.exists(Paths.get(SMK_DIR))) {
+            Output.println("fatal: not an smk repository");
+            return;
+        }
+        int format = repositoryFormat();
+
+        try {
+            if (format < CURRENT_FORMAT) {
+                rehashObjects();
+                markCurrent();
+                Output.println("Repository upgraded to format " + CURRENT_FORMAT + ".");
+            }
+
+            int moved = ObjectManager.shardLooseObjects();
+            if (moved > 0) {
+                Output.println("Moved " + moved + " loose objects into fan-out directories.");
+            }
+
+            if (format >= CURRENT_FORMAT && moved == 0) {
+                Output.println("Repository already uses format " + format + ".");
+            }
+        } catch (IOException e) {
+            Output.error("Error upgrading repository: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Format 1 -> 2: re-stores every object under its SHA-256 ID and rewrites all references.
+     */
+    private static void rehashObjects() throws IOException {
+        Path objectsDir = Paths.get(OBJECTS_DIR);
+        List<String> oldIds = ObjectManager.listObjectIds(objectsDir);
+        // Read while HEAD still names its old commit: a text index is completed from HEAD's tree
+        IndexMap idx = IndexManager.readIndex();
+
+        Map<String, String> renamed = new HashMap<>();
+        for (String id : oldIds) {
+            convert(id, renamed);
+        }
+
+        IndexMap upgraded = new IndexMap();
+        int dropped = 0;
+        for (Map.Entry<String, String> kv : idx.entrySet()) {
+            String to = renamed.get(kv.getValue());
+            // An entry whose blob is missing has no new ID; it would be the only old-length hash left
+            if (to == null || to.equals(kv.getValue())) {
+                dropped++;
+                continue;
+            }
+            upgraded.put(kv.getKey(), to);
+            upgraded.putStat(kv.getKey(), idx.getStat(kv.getKey()));
+        }
+        // Written before anything else changes: if it fails, the repository is left as it was,
+        // in format 1 and with its old objects, plus the unreferenced new ones
+        IndexManager.writeIndexOrThrow(upgraded);
+        if (dropped > 0) Output.println("Dropped " + dropped + " index entries whose objects are missing.");
+
+        int refs = rewriteRefs(Paths.get(SMK_DIR, "refs"), renamed);
+        refs += rewriteDetachedHead(renamed);
+
+        // Only now that nothing points at them any more can the old files go
+        for (Map.Entry<String, String> kv : renamed.entrySet()) {
+            if (!kv.getKey().equals(kv.getValue())) {
+                Files.deleteIfExists(ObjectManager.objectFile(objectsDir, kv.getKey()));
+            }
+        }
+
+        Output.println("Rewrote " + renamed.size() + " objects and " + refs + " refs with SHA-256 IDs.");
+    }
+
+    /**
+     * Converts an object after everything it references, using an explicit stack so long
+     * commit chains do not overflow the call stack.
+     */
+    private static void convert(final String root, final Map<String, String> renamed) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (renamed.containsKey(id)) {
+                stack.pop();
+                continue;
+            }
+
+            ObjectManager.ObjectContent obj = ObjectManager.readObjectContent(id);
+            if (obj.type().isEmpty()) {
+                // Dangling reference: keep it as-is rather than guessing
+                renamed.put(id, id);
+                stack.pop();
+                continue;
+            }
+
+            boolean ready = true;
+            for (String dep : references(obj)) {
+                if (!renamed.containsKey(dep)) {
+                    stack.push(dep);
+                    ready = false;
+                }
+            }
+            if (!ready) continue;
+
+            stack.pop();
+            if ("blob".equals(obj.type())) {
+                // Blob bytes are re-stored untouched, never decoded
+                renamed.put(id, ObjectManager.hashAndStoreObject("blob", obj.bytes()));
+            } else {
+                renamed.put(id, ObjectManager.hashAndStoreObject(obj.type(), rewriteReferences(obj, renamed)));
+            }
+        }
+    }
+
+    private static List<String> references(final ObjectManager.ObjectContent obj) {
+        List<String> out = new ArrayList<>();
+        if ("blob".equals(obj.type())) return out;
+        forEachLine(obj.content(), line -> {
+            String ref = referenceIn(obj.type(), line);
+            if (ref != null) out.add(ref);
+            return line;
+        });
+        return out;
+    }
+
+    private static String rewriteReferences(final ObjectManager.ObjectContent obj, final Map<String, String> renamed) {
+        return forEachLine(obj.content(), line -> {
+            String ref = referenceIn(obj.type(), line);
+            if (ref == null) return line;
+            String to = renamed.getOrDefault(ref, ref);
+            return line.substring(0, line.length() - ref.length()) + to;
+        });
+    }
+
+    // Trees hold "path\thash" lines; commits reference objects in their "tree"/"parent" headers.
+    private static String referenceIn(final String type, final String line) {
+        if ("tree".equals(type)) {
+            int tab = line.lastIndexOf('\t');
+            return tab == -1 || tab == line.length() - 1 ? null : line.substring(tab + 1);
+        }
+        if ("commit".equals(type)) {
+            if (line.startsWith("tree ")) return line.substring("tree ".length());
+            if (line.startsWith("parent ")) return line.substring("parent ".length());
+        }
+        return null;
+    }
+
+    private interface LineRewriter {
+        String apply(String line);
+    }
+
+    // Applies the rewriter to each line; commit messages (after the first blank line) are left untouched.
+    private static String forEachLine(final String content, final LineRewriter rewriter) {
+        StringBuilder out = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new StringReader(content))) {
+            String line;
+            boolean inHeader = true;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) inHeader = false;
+                out.append(inHeader ? rewriter.apply(line) : line).append("\n");
+            }
+        } catch (IOException e) {
+            // Reading from a String cannot fail
+        }
+        // Keep the content's trailing-newline state so unchanged lines round-trip exactly
+        if (!content.endsWith("\n") && out.length() > 0) out.setLength(out.length() - 1);
+        return out.toString();
+    }
+
+    private static int rewriteRefs(final Path dir, final Map<String, String> renamed) throws IOException {
+        if (!Files.isDirectory(dir)) return 0;
+        List<Path> refs;
+        try (Stream<Path> s = Files.walk(dir)) {
+            refs = s.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        int n = 0;
+        for (Path ref : refs) {
+            String id = Utils.readFileStr(ref.toString()).trim();
+            String to = renamed.get(id);
+            if (to != null && !to.equals(id)) {
+                Utils.writeFile(ref, to + "\n");
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static int rewriteDetachedHead(final Map<String, String> renamed) throws IOException {
+        Path head = Paths.get(SMK_DIR, "HEAD");
+        String s = Utils.readFileStr(head.toString()).trim();
+        if (s.startsWith("ref: ")) return 0;
+        String to = renamed.get(s);
+        if (to == null || to.equals(s)) return 0;
+        Utils.writeFile(head, to + "\n");
+        return 1;
+    }
+}
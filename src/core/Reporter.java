@@ -0,0 +1,30 @@
+package core;
+
+/**
+ * Where commands send their output. The CLI writes it through one large buffer
+ * ({@link CliReporter}); the GUI batches the lines it reads from a command's process
+ * through an {@link EventReporter}.
+ * Commands reach the current reporter through {@link Output}.
+ */
+public interface Reporter {
+
+    /**
+     * Writes one line of ordinary output.
+     */
+    void println(String line);
+
+    /**
+     * Writes preformatted text, such as a file diff, as it is.
+     */
+    void print(String text);
+
+    /**
+     * Writes one line of error output.
+     */
+    void error(String line);
+
+    /**
+     * Delivers everything buffered so far.
+     */
+    void flush();
+}
@@ -0,0 +1,106 @@
+package core;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.List;
+
+/**
+ * Measures where the time of a short command goes ("smk --startup-trace <command>"): JVM
+ * startup up to main, the command up to its first output, and the whole run, with the number
+ * of classes loaded along the way. The report goes to standard error after the command's own
+ * output, so the output itself is unchanged.
+ *
+ * The trace is a reporter wrapped around the current one, noting when the command first writes.
+ * Class counts include the java.lang.management classes the trace itself loads.
+ */
+public final class StartupTrace implements Reporter {
+
+    private final Reporter delegate;
+    private final long mainNs;
+    private final long jvmToMainMs;
+    private final int classesAtMain;
+    private final String archive;
+    private volatile long firstOutputNs;
+
+    private StartupTrace(final Reporter delegate, final long mainNs, final long mainMs) {
+        this.delegate = delegate;
+        this.mainNs = mainNs;
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        // The JVM's start time only has millisecond precision
+        this.jvmToMainMs = mainMs - runtime.getStartTime();
+        this.classesAtMain = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+        this.archive = sharedArchive(runtime.getInputArguments());
+    }
+
+    /**
+     * Starts tracing the current command and installs the trace as the reporter.
+     * @param mainNs {@link System#nanoTime()} on entry to main.
+     * @param mainMs {@link System#currentTimeMillis()} on entry to main.
+     */
+    public static StartupTrace start(final long mainNs, final long mainMs) {
+        StartupTrace trace = new StartupTrace(Output.get(), mainNs, mainMs);
+        Output.set(trace);
+        return trace;
+    }
+
+    /**
+     * Writes the report, after flushing the command's output.
+     */
+    public void report() {
+        long endNs = System.nanoTime();
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        delegate.flush();
+        delegate.error("startup-trace: JVM start to main     " + jvmToMainMs + " ms");
+        if (firstOutputNs != 0) {
+            delegate.error("startup-trace: main to first output  " + millis(firstOutputNs - mainNs) + " ms");
+        } else {
+            delegate.error("startup-trace: main to first output  (no output)");
+        }
+        delegate.error("startup-trace: main to exit          " + millis(endNs - mainNs) + " ms");
+        delegate.error("startup-trace: classes loaded        " + classesAtMain + " at main, "
+                + classes.getLoadedClassCount() + " at exit");
+        delegate.error("startup-trace: class-data archive    " + archive);
+        for (ObjectCache.Stats s : ObjectManager.cacheStats()) delegate.error("startup-trace: " + s);
+    }
+
+    @Override
+    public void println(final String line) {
+        noteOutput();
+        delegate.println(line);
+    }
+
+    @Override
+    public void print(final String text) {
+        noteOutput();
+        delegate.print(text);
+    }
+
+    @Override
+    public void error(final String line) {
+        noteOutput();
+        delegate.error(line);
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    private void noteOutput() {
+        if (firstOutputNs == 0) firstOutputNs = System.nanoTime();
+    }
+
+    private static String millis(final long ns) {
+        return String.format("%.1f", ns / 1e6);
+    }
+
+    // The application archive given on the command line; without one only the JDK's own classes are shared
+    private static String sharedArchive(final List<String> jvmArgs) {
+        for (String arg : jvmArgs) {
+            if (arg.startsWith("-XX:SharedArchiveFile=")) return arg.substring("-XX:SharedArchiveFile=".length());
+            if (arg.equals("-Xshare:off")) return "off";
+        }
+        return "JDK default (no application archive)";
+    }
+}
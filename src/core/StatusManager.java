@@ -0,0 +1,153 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Works out what "smk status" reports: the changes staged in the index, the changes in the
+ * working tree that are not staged yet, and the untracked files.
+ *
+ * While a file system monitor runs, the result is kept with the index it was computed from and
+ * the monitor token taken before the working tree was looked at. As long as neither the index
+ * nor HEAD changes, the next status only checks the paths the monitor lists as changed since that
+ * token, plus the few it cannot vouch for (see {@link FsMonitor#reportsChanges}); the rest of the
+ * index and the HEAD tree are not read at all.
+ */
+public class StatusManager {
+
+    /**
+     * The lists "smk status" prints, each in path order.
+     */
+    public record Status(List<String> stagedNew, List<String> stagedModified, List<String> stagedDeleted,
+                         List<String> notStagedModified, List<String> notStagedDeleted, List<String> untracked) {}
+
+    // A result and what it was computed from; recheck holds the paths to check again whatever the monitor says
+    private record Snapshot(IndexFile index, String head, long token, Status status, Set<String> recheck) {}
+
+    private static Snapshot last;
+
+    public static synchronized Status status() {
+        IndexFile index = IndexManager.openIndex();
+        String head = CommitManager.readRefHead();
+        long token = FsMonitor.token();
+
+        // openIndex hands out the same view while the index file is unchanged
+        Set<String> changed = last != null && last.index() == index && last.head().equals(head)
+                ? FsMonitor.changedSince(last.token()) : null;
+        Snapshot next = changed != null ? refresh(last, changed, token) : full(index, head, token);
+
+        if (FsMonitor.current() != null) {
+            last = next;
+            FsMonitor.keepChangesSince(token);
+        } else {
+            last = null;
+        }
+        return next.status();
+    }
+
+    private static Snapshot full(final IndexFile index, final String head, final long token) {
+        IndexMap headTree = CommitManager.readHeadTree();
+        Set<String> recheck = FsMonitor.current() != null ? new HashSet<>() : null;
+
+        List<String> stagedNew = new ArrayList<>();
+        List<String> stagedModified = new ArrayList<>();
+        List<String> stagedDeleted = new ArrayList<>();
+        List<String> notStagedModified = new ArrayList<>();
+        List<String> notStagedDeleted = new ArrayList<>();
+
+        int[] inHead = {0};
+        index.forEachEntry((i, path) -> {
+            String headBlob = headTree.get(path);
+            if (headBlob == null) {
+                stagedNew.add(path);
+            } else {
+                inHead[0]++;
+                if (!index.hashEquals(i, headBlob)) stagedModified.add(path);
+            }
+            checkWorkingFile(index, i, path, notStagedModified, notStagedDeleted, recheck);
+        });
+
+        // Only searched for when some HEAD path did not turn up in the index
+        if (inHead[0] < headTree.size()) {
+            for (String path : headTree.keySet()) {
+                if (index.find(path) < 0) {
+                    stagedDeleted.add(path);
+                }
+            }
+            Collections.sort(stagedDeleted);
+        }
+
+        List<String> untracked = new ArrayList<>();
+        for (String f : Utils.listFilesRecursive(".")) {
+            if (!headTree.containsKey(f) && index.find(f) < 0) {
+                untracked.add(f);
+            }
+        }
+
+        Status status = new Status(stagedNew, stagedModified, stagedDeleted, notStagedModified, notStagedDeleted, untracked);
+        return new Snapshot(index, head, token, status, recheck);
+    }
+
+    // Same index, same HEAD: the staged changes stand, and only changed paths are looked at again.
+    private static Snapshot refresh(final Snapshot prev, final Set<String> changed, final long token) {
+        Status old = prev.status();
+        IndexFile index = prev.index();
+
+        Set<String> candidates = new HashSet<>(prev.recheck());
+        candidates.addAll(changed);
+        Set<String> modified = new TreeSet<>(old.notStagedModified());
+        Set<String> deleted = new TreeSet<>(old.notStagedDeleted());
+        Set<String> untracked = new TreeSet<>(old.untracked());
+        modified.removeAll(candidates);
+        deleted.removeAll(candidates);
+        untracked.removeAll(candidates);
+
+        // A path in HEAD but not in the index is tracked, and shows as a staged deletion
+        Set<String> headOnly = new HashSet<>(old.stagedDeleted());
+        Set<String> recheck = new HashSet<>();
+        for (String path : candidates) {
+            int i = index.find(path);
+            if (i >= 0) {
+                checkWorkingFile(index, i, path, modified, deleted, recheck);
+            } else if (!headOnly.contains(path) && FsMonitor.isWorkingFile(path)) {
+                untracked.add(path);
+            }
+        }
+
+        Status status = new Status(old.stagedNew(), old.stagedModified(), old.stagedDeleted(),
+                new ArrayList<>(modified), new ArrayList<>(deleted), new ArrayList<>(untracked));
+        return new Snapshot(index, prev.head(), token, status, recheck);
+    }
+
+    // Compares the working file of an index entry with it. With a monitor, a path that differs or
+    // whose changes the monitor would not report goes into recheck.
+    private static void checkWorkingFile(final IndexFile index, final int i, final String path,
+                                         final Collection<String> modified, final Collection<String> deleted,
+                                         final Set<String> recheck) {
+        boolean differs = false;
+        // A hash the monitor knows means the file is still there
+        if (FsMonitor.knownHash(path) == null && !Files.exists(Paths.get(path))) {
+            deleted.add(path);
+            differs = true;
+        } else {
+            try {
+                String workBlob = IndexManager.hashWorkingFile(index, i, path);
+                if (!index.hashEquals(i, workBlob)) {
+                    modified.add(path);
+                    differs = true;
+                }
+            } catch (IOException e) {
+                // Ignore IO error during hashing, treat as unchanged or skip
+            }
+        }
+        if (recheck != null && (differs || !FsMonitor.reportsChanges(path))) recheck.add(path);
+    }
+}
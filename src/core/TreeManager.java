@@ -0,0 +1,272 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Reads, writes and compares tree objects.
+ *
+ * A tree object describes one directory with a {@code name\thash} line per entry, sorted by name.
+ * Names ending in "/" refer to the tree object of a subdirectory, so the tree of a commit is a
+ * hierarchy and a directory whose content did not change keeps its tree object from one commit
+ * to the next. Walking two trees can then skip every subtree whose hash is the same in both.
+ *
+ * Trees written before this layout list every path of the snapshot in one flat object
+ * ({@code dir/file\thash}); they are still read, and compared path by path.
+ */
+public class TreeManager {
+
+    /**
+     * One line of a tree object.
+     */
+    public record Entry(String name, String hash) {
+        public boolean isTree() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Receives the files met while walking several trees side by side.
+     */
+    public interface PathVisitor {
+        /**
+         * @param path The file path.
+         * @param hashes The blob hash of the path in each tree, null where the tree has no such file.
+         */
+        void visit(String path, String[] hashes);
+    }
+
+    /**
+     * Decides whether a subtree can be skipped while walking several trees side by side.
+     */
+    public interface SubtreeFilter {
+        /**
+         * @param hashes The hash of the subtree in each tree, null where the tree has no such directory.
+         */
+        boolean skip(String[] hashes);
+    }
+
+    // A directory of the snapshot being written
+    private static final class Dir {
+        final Map<String, String> files = new TreeMap<>();
+        final Map<String, Dir> dirs = new TreeMap<>();
+    }
+
+    /**
+     * Reads the entries of one tree object.
+     * @return The entries, unmodifiable; an empty list if the object is missing or not a tree.
+     */
+    public static List<Entry> readEntries(final String treeHash) {
+        if (treeHash == null || treeHash.isEmpty()) return Collections.emptyList();
+        List<Entry> entries = ObjectManager.treeCache().get(treeHash, k -> parseEntries(ObjectManager.readObjectContent(k)));
+        return entries != null ? entries : Collections.emptyList();
+    }
+
+    /**
+     * Reads the entries of one tree object of a given objects directory, e.g. of a repository
+     * other than the working directory.
+     */
+    public static List<Entry> readEntries(final Path objectsDir, final String treeHash) {
+        if (treeHash == null || treeHash.isEmpty()) return Collections.emptyList();
+        List<Entry> entries = ObjectManager.treeCache().get(treeHash, k -> parseEntries(ObjectManager.readObject(objectsDir, k)));
+        return entries != null ? entries : Collections.emptyList();
+    }
+
+    // Parses a tree object; null if it is missing or not a tree. The list is shared through the cache.
+    private static List<Entry> parseEntries(final ObjectManager.ObjectContent obj) {
+        if (!"tree".equals(obj.type())) return null;
+
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(obj.content()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0 || tab == line.length() - 1) continue;
+                entries.add(new Entry(line.substring(0, tab), line.substring(tab + 1)));
+            }
+        } catch (IOException e) {
+            Output.error("Error reading tree object: " + e.getMessage());
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Flattens a tree into a path to blob hash map. The map also remembers the hash of every
+     * tree object it was read from, which {@link #writeTree} uses to reuse unchanged directories.
+     */
+    public static IndexMap readTree(final String treeHash) {
+        return readTree(treeHash, TreeManager::readEntries);
+    }
+
+    /**
+     * Flattens a tree of a given objects directory, e.g. of a repository other than the working directory.
+     */
+    public static IndexMap readTree(final Path objectsDir, final String treeHash) {
+        return readTree(treeHash, hash -> readEntries(objectsDir, hash));
+    }
+
+    private static IndexMap readTree(final String treeHash, final Function<String, List<Entry>> entries) {
+        IndexMap tree = new IndexMap();
+        if (treeHash == null || treeHash.isEmpty()) return tree;
+
+        Deque<String[]> pending = new ArrayDeque<>();
+        pending.push(new String[] {"", treeHash});
+        while (!pending.isEmpty()) {
+            String[] dir = pending.pop();
+            tree.putTreeHash(dir[0], dir[1]);
+            for (Entry e : entries.apply(dir[1])) {
+                if (e.isTree()) {
+                    pending.push(new String[] {dir[0] + e.name(), e.hash()});
+                } else {
+                    tree.put(dir[0] + e.name(), e.hash());
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Writes a snapshot as a hierarchy of tree objects.
+     * Directories in which no path differs from {@code base} are not serialized or hashed
+     * again; their tree hash is taken from {@code base}.
+     * @param files The snapshot, path to blob hash.
+     * @param base A tree previously returned by {@link #readTree}, or null.
+     * @return The hash of the root tree.
+     */
+    public static String writeTree(final IndexMap files, final IndexMap base) {
+        Set<String> dirty = null;
+        if (base != null && base.getTreeHash("") != null) {
+            dirty = new HashSet<>();
+            for (Map.Entry<String, String> kv : files.entrySet()) {
+                if (!kv.getValue().equals(base.get(kv.getKey()))) markParents(kv.getKey(), dirty);
+            }
+            for (String path : base.keySet()) {
+                if (!files.containsKey(path)) markParents(path, dirty);
+            }
+        }
+
+        Dir root = new Dir();
+        for (Map.Entry<String, String> kv : files.entrySet()) {
+            Dir d = root;
+            String path = kv.getKey();
+            int start = 0;
+            int slash;
+            while ((slash = path.indexOf('/', start)) != -1) {
+                d = d.dirs.computeIfAbsent(path.substring(start, slash), k -> new Dir());
+                start = slash + 1;
+            }
+            d.files.put(path.substring(start), kv.getValue());
+        }
+        return write(root, "", base, dirty);
+    }
+
+    private static String write(final Dir dir, final String prefix, final IndexMap base, final Set<String> dirty) {
+        if (dirty != null && !dirty.contains(prefix)) {
+            String reused = base.getTreeHash(prefix);
+            if (reused != null) return reused;
+        }
+
+        Map<String, String> entries = new TreeMap<>(dir.files);
+        for (Map.Entry<String, Dir> kv : dir.dirs.entrySet()) {
+            String name = kv.getKey() + "/";
+            entries.put(name, write(kv.getValue(), prefix + name, base, dirty));
+        }
+
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> kv : entries.entrySet()) {
+            content.append(kv.getKey()).append("\t").append(kv.getValue()).append("\n");
+        }
+        return ObjectManager.hashAndStoreObject("tree", content.toString());
+    }
+
+    // Marks every directory containing the path, the root ("") included.
+    private static void markParents(final String path, final Set<String> dirty) {
+        dirty.add("");
+        int slash = -1;
+        while ((slash = path.indexOf('/', slash + 1)) != -1) {
+            dirty.add(path.substring(0, slash + 1));
+        }
+    }
+
+    /**
+     * Walks several trees side by side, visiting every file path in name order.
+     * Subtrees the filter skips are not read at all.
+     * @param trees The root tree hashes; null or empty for a tree with no files.
+     * @param filter Decides which subtrees to skip.
+     * @param visitor Receives each file path with its hash in every tree.
+     */
+    public static void walk(final String[] trees, final SubtreeFilter filter, final PathVisitor visitor) {
+        String[] roots = new String[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            roots[i] = trees[i] == null || trees[i].isEmpty() ? null : trees[i];
+        }
+        if (filter.skip(roots)) return;
+        walkDir("", roots, filter, visitor);
+    }
+
+    /**
+     * A filter for two-way walks that skips subtrees identical in both trees.
+     */
+    public static boolean sameSubtree(final String[] hashes) {
+        return hashes[0] == null ? hashes[1] == null : hashes[0].equals(hashes[1]);
+    }
+
+    private static void walkDir(final String prefix, final String[] hashes, final SubtreeFilter filter,
+                                final PathVisitor visitor) {
+        int n = hashes.length;
+        List<List<Entry>> lists = new ArrayList<>(n);
+        boolean flat = false;
+        for (String hash : hashes) {
+            List<Entry> entries = readEntries(hash);
+            for (Entry e : entries) {
+                int slash = e.name().indexOf('/');
+                if (slash != -1 && slash != e.name().length() - 1) flat = true;
+            }
+            lists.add(entries);
+        }
+
+        if (flat) {
+            // A tree in the old flat layout cannot be matched name by name: compare whole paths
+            IndexMap[] trees = new IndexMap[n];
+            Set<String> paths = new TreeSet<>();
+            for (int i = 0; i < n; i++) {
+                trees[i] = readTree(hashes[i]);
+                paths.addAll(trees[i].keySet());
+            }
+            for (String path : paths) {
+                String[] at = new String[n];
+                for (int i = 0; i < n; i++) at[i] = trees[i].get(path);
+                visitor.visit(prefix + path, at);
+            }
+            return;
+        }
+
+        Map<String, String[]> byName = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            for (Entry e : lists.get(i)) {
+                byName.computeIfAbsent(e.name(), k -> new String[n])[i] = e.hash();
+            }
+        }
+        for (Map.Entry<String, String[]> kv : byName.entrySet()) {
+            String name = kv.getKey();
+            if (name.endsWith("/")) {
+                if (!filter.skip(kv.getValue())) walkDir(prefix + name, kv.getValue(), filter, visitor);
+            } else {
+                visitor.visit(prefix + name, kv.getValue());
+            }
+        }
+    }
+}
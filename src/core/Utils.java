@@ -1,10 +1,17 @@
 package core;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 
 /**
  * Small helper methods for filesystem IO and path utilities used across the VCS.
@@ -30,11 +37,47 @@ public class Utils {
         Files.writeString(path, data);
     }
 
+    // Writes raw bytes to a file. Creates the folder if it does not exist.
+    public static void writeFile(Path path, byte[] data) throws IOException {
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(path, data);
+    }
+
     // Overload: allow passing the path as a String.
     public static void writeFile(String path, String data) throws IOException {
         writeFile(Paths.get(path), data);
     }
 
+    // Moves a freshly written temp file over the target, atomically where the filesystem supports it.
+    public static void replaceFile(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Windows refuses to delete or replace a file that is still mapped, and a mapping is only
+    // released when its buffer is garbage collected, so files are read onto the heap there.
+    private static final boolean MAP_FILES = File.separatorChar == '/';
+
+    // Maps a whole file read-only (or reads it, where mapping is not safe). Null if the file is missing.
+    public static ByteBuffer mapReadOnly(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long len = ch.size();
+            if (len > Integer.MAX_VALUE) throw new IOException(path.getFileName() + " too large: " + len + " bytes");
+            if (MAP_FILES) return ch.map(FileChannel.MapMode.READ_ONLY, 0, len);
+            ByteBuffer buf = ByteBuffer.allocate((int) len);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {}
+            return buf.flip();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
     // Checks if a given file or folder exists.
     public static boolean pathExists(String p) {
         return Files.exists(Paths.get(p));
@@ -45,23 +88,113 @@ public class Utils {
         Files.createDirectories(Paths.get(p));
     }
 
-    // Returns a list of file paths inside a folder, including subfolders.
+    // Returns a list of the working files inside a folder, including subfolders, sorted by path.
+    // .smk directories and whatever the folder's .smkignore excludes are left out; ignored
+    // directories are skipped whole rather than walked and filtered.
     public static List<String> listFilesRecursive(String dir) {
-        Path start = Paths.get(dir);
+        return listFilesRecursive(dir, IgnoreRules.load(Paths.get(dir)));
+    }
+
+    // Same, with the ignore rules already loaded. With a file system monitor running (see
+    // FsMonitor) the list comes from it instead of a walk.
+    public static List<String> listFilesRecursive(String dir, IgnoreRules ignore) {
+        List<String> monitored = FsMonitor.listFiles(dir);
+        if (monitored != null) return monitored;
 
-        try (Stream<Path> walker = Files.walk(start)) {
-            return walker
-                    .filter(Files::isRegularFile)
-                    .map(Path::toString)
-                    .collect(Collectors.toList());
+        List<String> files = new ArrayList<>();
+        try {
+            walkFiles(Paths.get(dir), ignore.root(), null, files::add);
         } catch (IOException e) {
-            System.err.println("Failed to list files: " + e.getMessage());
+            Output.error("Failed to list files: " + e.getMessage());
             return List.of();
         }
+        // Sorted, so the order does not depend on the file system, nor on whether a monitor answered
+        Collections.sort(files);
+        return files;
+    }
+
+    // Receives each directory a walk enters.
+    public interface DirVisitor {
+        void visit(Path dir) throws IOException;
+    }
+
+    // Walks the working files under start, whose ignore state is the given one. .smk and ignored
+    // directories are skipped whole; dirs (if not null) sees every directory entered, start included.
+    public static void walkFiles(Path start, IgnoreRules.State state, DirVisitor dirs, Consumer<String> files)
+            throws IOException {
+        Deque<IgnoreRules.State> states = new ArrayDeque<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                IgnoreRules.State inside;
+                if (states.isEmpty()) {
+                    inside = state;
+                } else {
+                    String name = d.getFileName().toString();
+                    if (name.equals(".smk")) return FileVisitResult.SKIP_SUBTREE;
+                    inside = states.peek().enter(name);
+                    if (inside == null) return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (dirs != null) dirs.visit(d);
+                states.push(inside);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                // Links are not followed, but a link to a file is listed like the file
+                boolean regular = attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(f));
+                if (regular && !states.peek().ignores(f.getFileName().toString())) files.accept(f.toString());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException e) {
+                Output.error("Failed to list " + f + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) {
+                states.pop();
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
     // Joins two paths into one, correctly handling slashes.
     public static String joinPath(String a, String b) {
         return Paths.get(a, b).toString();
     }
+
+    // Converts a lowercase hex string (like an object id) to raw bytes. Returns null if it is not valid hex.
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) return null;
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
+    // Converts raw bytes to a lowercase hex string.
+    public static String bytesToHex(byte[] data, int off, int len) {
+        char[] out = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            int b = data[off + i] & 0xFF;
+            out[2 * i] = HEX_DIGITS[b >>> 4];
+            out[2 * i + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(out);
+    }
+
+    // Overload: convert a whole array.
+    public static String bytesToHex(byte[] data) {
+        return bytesToHex(data, 0, data.length);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 }